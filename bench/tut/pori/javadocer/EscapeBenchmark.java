@@ -0,0 +1,112 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the HTML output of {@link Restlet}, i.e. the escaping of the formatted content.
+ * 
+ * The escaping of commons-lang is measured as a baseline. The syntax highlighting of {@link HtmlRenderer} is measured for XML and JSON content of the same size,
+ * it parses the content again, so it is expected to be slower than the plain escaping by a small constant factor regardless of the size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class EscapeBenchmark {
+	private String _content = null;
+	private String _jsonContent = null;
+	private HtmlRenderer _renderer = null;
+	/** the approximate size of the formatted content in bytes */
+	@Param({"1024", "65536", "1048576", "52428800"})
+	public int size;
+
+	/**
+	 * Generates and formats the content
+	 * 
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	@Setup
+	public void setUp() throws XMLStreamException, IOException, ParseException {
+		if(System.getProperty(Javadocer.PROPERTY_REST_URI) == null){
+			System.setProperty(Javadocer.PROPERTY_REST_URI, "http://127.0.0.1/rest/"); // not called
+		}
+		try(Javadocer javadocer = new Javadocer(null, null)){
+			_content = javadocer.format(new ByteArrayInputStream(Payloads.createDocument(0, size, 8)), true);
+			_jsonContent = javadocer.formatJson(new ByteArrayInputStream(Payloads.createJsonDocument(0, size, 8)), true);
+		}
+		_renderer = new HtmlRenderer(true, false);
+	}
+
+	/**
+	 * 
+	 * @return the HTML output
+	 */
+	@Benchmark
+	public String toPreformatted() {
+		return HtmlEscapingWriter.toPreformatted(_content);
+	}
+
+	/**
+	 * 
+	 * @return the HTML output using the escaping of commons-lang
+	 */
+	@Benchmark
+	public String escapeHtml4() {
+		return "<pre>"+StringEscapeUtils.escapeHtml4(_content)+"</pre>";
+	}
+
+	/**
+	 * 
+	 * @return the syntax highlighted HTML output
+	 */
+	@Benchmark
+	public String highlight() {
+		return _renderer.render(null, _content);
+	}
+
+	/**
+	 * 
+	 * @return the syntax highlighted HTML output of JSON content
+	 */
+	@Benchmark
+	public String highlightJson() {
+		return _renderer.render(null, _jsonContent);
+	}
+}
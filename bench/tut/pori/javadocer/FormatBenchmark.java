@@ -0,0 +1,159 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the response processing of {@link Javadocer}, i.e. the paths which replaced the DOM based getExampleContent, cleanWhiteSpace and toString(Node).
+ * 
+ * <ul>
+ * 	<li>scanToExample: the example is preceded by content of the given size, measures the scanning for the example element</li>
+ * 	<li>extractExample: the example content is of the given size, measures the scanning and the pretty printing of the example</li>
+ * 	<li>formatDocument: the document of the given size has no example, measures the pretty printing of the whole document as done for the responses without an example</li>
+ * 	<li>extractJsonExample: as extractExample, but for JSON content</li>
+ * </ul>
+ * 
+ * Run with the GC profiler (-prof gc) to see the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class FormatBenchmark {
+	private static final int SMALL_SIZE = 512; // the size of the other part of the document
+	private byte[] _example = null;
+	private XmlFormatter _formatter = null;
+	private Javadocer _javadocer = null;
+	private byte[] _jsonExample = null;
+	private byte[] _noExample = null;
+	private byte[] _preamble = null;
+	/** the nesting depth of the records */
+	@Param({"4", "64"})
+	public int depth;
+	/** the approximate size of the measured part of the document in bytes */
+	@Param({"1024", "65536", "1048576", "52428800"})
+	public int size;
+
+	/**
+	 * Generates the documents
+	 */
+	@Setup
+	public void setUp() {
+		if(System.getProperty(Javadocer.PROPERTY_REST_URI) == null){
+			System.setProperty(Javadocer.PROPERTY_REST_URI, "http://127.0.0.1/rest/"); // not called
+		}
+		_javadocer = new Javadocer(null, null);
+		_formatter = new XmlFormatter();
+		_preamble = Payloads.createDocument(size, SMALL_SIZE, depth);
+		_example = Payloads.createDocument(SMALL_SIZE, size, depth);
+		_noExample = Payloads.createDocument(size, 0, depth);
+		_jsonExample = Payloads.createJsonDocument(SMALL_SIZE, size, depth);
+	}
+
+	/**
+	 * Closes the engine
+	 */
+	@TearDown
+	public void tearDown() {
+		_javadocer.close();
+	}
+
+	/**
+	 * 
+	 * @return the formatted example
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	@Benchmark
+	public String scanToExample() throws XMLStreamException, IOException {
+		return _javadocer.format(new ByteArrayInputStream(_preamble), true);
+	}
+
+	/**
+	 * 
+	 * @return the formatted example
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	@Benchmark
+	public String extractExample() throws XMLStreamException, IOException {
+		return _javadocer.format(new ByteArrayInputStream(_example), true);
+	}
+
+	/**
+	 * 
+	 * @return the formatted document
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	@Benchmark
+	public String formatDocument() throws XMLStreamException, IOException {
+		return _javadocer.format(new ByteArrayInputStream(_noExample), false);
+	}
+
+	/**
+	 * 
+	 * @return the formatted example
+	 * @throws ParseException
+	 * @throws IOException
+	 */
+	@Benchmark
+	public String extractJsonExample() throws ParseException, IOException {
+		return _javadocer.formatJson(new ByteArrayInputStream(_jsonExample), true);
+	}
+
+	/**
+	 * Formats the document without the example detection and the recording of the content, as a baseline for {@link #formatDocument()}
+	 * 
+	 * @return the formatted document
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	@Benchmark
+	public String formatterOnly() throws XMLStreamException, IOException {
+		StringWriter writer = new StringWriter();
+		XMLStreamReader reader = _formatter.createReader(new ByteArrayInputStream(_noExample));
+		try{
+			_formatter.formatDocument(reader, writer);
+		} finally {
+			reader.close();
+		}
+		return writer.toString();
+	}
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Load test driver, which pushes synthetic {&#64;doc.restlet} tags through {@link JavadocerParameters#parse(String)} and {@link Javadocer#retrieveContent(JavadocerParameters)} at the given concurrency levels.
+ * 
+ * The requests are sent to a {@link StandInServer} started in the same process, or to the server given by the option rest_uri. The options are given as name=value arguments:
+ * <ul>
+ * 	<li>tags - the number of tags for each concurrency level, default is 2000</li>
+ * 	<li>concurrency - comma separated list of concurrency levels, default is 1,8,32</li>
+ * 	<li>post_ratio - the share (0-1) of POST tags with body content, default is 0.1</li>
+ * 	<li>duplicate_ratio - the share (0-1) of tags which repeat a previous tag of the same level, default is 0</li>
+ * 	<li>rest_uri - the server to use instead of the stand-in server</li>
+ * 	<li>the options of {@link StandInServer}</li>
+ * </ul>
+ * 
+ * For each level, the throughput, the latency percentiles, the number of failed tags and the heap use are reported. The tags of a level are retrieved using a single engine shared by all threads.
+ * The engine is configured by the usual system properties, e.g. the retries by {@link RequestPolicy} and the response cache by {@link ResponseCache}. The size of the connection pool defaults to the highest concurrency level.
+ * 
+ * Usage: LoadDriver [name=value ...]
+ */
+public final class LoadDriver {
+	private static final Logger LOGGER = Logger.getLogger(LoadDriver.class);
+	private static final int STATUS_EXCEPTION = -1;
+
+	/**
+	 * 
+	 */
+	private LoadDriver(){
+		// nothing needed
+	}
+
+	/**
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		Map<String, String> options = new HashMap<>();
+		for(String arg : args){
+			String[] parts = StringUtils.split(arg, "=", 2);
+			if(parts.length != 2){
+				System.err.println("Usage: "+LoadDriver.class.getName()+" [name=value ...]");
+				System.exit(STATUS_EXCEPTION);
+			}
+			options.put(parts[0], parts[1]);
+		}
+
+		StandInServer server = null;
+		try{
+			String restUri = options.get("rest_uri");
+			if(StringUtils.isBlank(restUri)){
+				server = new StandInServer(options);
+				restUri = server.getUri();
+			}
+			System.setProperty(Javadocer.PROPERTY_REST_URI, restUri);
+
+			int tagCount = Integer.parseInt(StringUtils.defaultString(options.get("tags"), "2000"));
+			double postRatio = Double.parseDouble(StringUtils.defaultString(options.get("post_ratio"), "0.1"));
+			double duplicateRatio = Double.parseDouble(StringUtils.defaultString(options.get("duplicate_ratio"), "0"));
+			List<Integer> levels = new ArrayList<>();
+			for(String level : StringUtils.split(StringUtils.defaultString(options.get("concurrency"), "1,8,32"), ',')){
+				levels.add(Integer.valueOf(level.trim()));
+			}
+			if(System.getProperty(RequestPolicy.PROPERTY_MAX_CONNECTIONS) == null){
+				System.setProperty(RequestPolicy.PROPERTY_MAX_CONNECTIONS, String.valueOf(Collections.max(levels))); // do not let the connection pool limit the concurrency
+			}
+			List<String> results = new ArrayList<>();
+			for(Integer concurrency : levels){
+				results.add(run(createTags(tagCount, postRatio, duplicateRatio, concurrency), concurrency));
+			}
+			LOGGER.info("Results:"+System.lineSeparator()+StringUtils.join(results, System.lineSeparator()));
+		} catch (Throwable ex) {
+			LOGGER.error(ex, ex);
+			System.exit(STATUS_EXCEPTION);
+		} finally {
+			if(server != null){
+				server.close();
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param count
+	 * @param postRatio
+	 * @param duplicateRatio
+	 * @param run the identifier of the run, used for making the tags unique between the runs
+	 * @return the tag texts
+	 */
+	public static List<String> createTags(int count, double postRatio, double duplicateRatio, int run) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		List<String> tags = new ArrayList<>(count);
+		for(int i = 0; i < count; ++i){
+			if(i > 0 && random.nextDouble() < duplicateRatio){
+				tags.add(tags.get(random.nextInt(i)));
+			}else if(random.nextDouble() < postRatio){
+				tags.add("service=\"service"+(i % 5)+"\" method=\"method"+(i % 20)+"\" type=\"POST\"\n query=\"run="+run+"&id="+i+"\" body_uri=\"service0/body?id="+(i % 50)+"\"");
+			}else{
+				tags.add("service=\"service"+(i % 5)+"\" method=\"method"+(i % 20)+"\" type=\"GET\"\n query=\"run="+run+"&id="+i+"\"");
+			}
+		}
+		return tags;
+	}
+
+	/**
+	 * 
+	 * @param tags
+	 * @param concurrency
+	 * @return the report of the run
+	 * @throws InterruptedException
+	 */
+	public static String run(List<String> tags, int concurrency) throws InterruptedException {
+		RequestCoalescer coalescer = new RequestCoalescer();
+		final Javadocer javadocer = new Javadocer(ResponseCache.fromSystemProperties(), coalescer); // shared by all threads, as in Prefetcher
+		final long[] latencies = new long[tags.size()];
+		final AtomicInteger failures = new AtomicInteger();
+		List<Callable<Void>> tasks = new ArrayList<>(tags.size());
+		for(int i = 0; i < tags.size(); ++i){
+			final int index = i;
+			final String tag = tags.get(i);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					long started = System.nanoTime();
+					try{
+						javadocer.retrieveContent(JavadocerParameters.parse(tag));
+					} catch (IllegalArgumentException ex) {
+						LOGGER.debug(ex, ex);
+						failures.incrementAndGet();
+					}
+					latencies[index] = System.nanoTime()-started;
+					return null;
+				}
+			});
+		}
+
+		System.gc();
+		List<MemoryPoolMXBean> pools = new ArrayList<>();
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+			if(pool.getType() == MemoryType.HEAP && pool.isValid()){
+				pool.resetPeakUsage();
+				pools.add(pool);
+			}
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		long started = System.nanoTime();
+		try{
+			executor.invokeAll(tasks);
+		} finally {
+			executor.shutdown();
+			javadocer.close();
+		}
+		double seconds = (System.nanoTime()-started)/1e9;
+		long peak = 0;
+		for(MemoryPoolMXBean pool : pools){
+			peak += pool.getPeakUsage().getUsed();
+		}
+
+		Arrays.sort(latencies);
+		return String.format("concurrency: %3d, tags: %6d, failed: %5d, time: %8.2f s, throughput: %9.1f tags/s, latency p50: %8.2f ms, p90: %8.2f ms, p99: %8.2f ms, max: %8.2f ms, heap peak: %6d MB, folded: %d",
+				concurrency, tags.size(), failures.get(), seconds, tags.size()/seconds,
+				getPercentile(latencies, 50)/1e6, getPercentile(latencies, 90)/1e6, getPercentile(latencies, 99)/1e6, latencies[latencies.length-1]/1e6,
+				peak/(1024*1024), coalescer.getFoldedCount());
+	}
+
+	/**
+	 * 
+	 * @param sorted
+	 * @param percentile
+	 * @return the value of the given percentile using the nearest-rank method
+	 */
+	private static long getPercentile(long[] sorted, int percentile) {
+		return sorted[Math.max(0, (int) Math.ceil(percentile/100.0*sorted.length)-1)];
+	}
+}
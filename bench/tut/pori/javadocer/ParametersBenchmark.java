@@ -0,0 +1,90 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link JavadocerParameters#parse(String)}.
+ * 
+ * The parser is measured without the memoization of the results, which is measured separately.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParametersBenchmark {
+	/** method name referenced by the benchmark tag */
+	public static final String METHOD = "test";
+	/** service name referenced by the benchmark tag */
+	public static final String SERVICE = "ts";
+	private static final String CONSTANTS = "service=\"[tut.pori.javadocer.ParametersBenchmark#SERVICE]\" method=\"[tut.pori.javadocer.ParametersBenchmark#METHOD]\" type=\"POST\"\n query=\"par1=1&par2=2\" body_uri=\"/ts/test2?par3=3\"";
+	private static final String PLAIN = "service=\"ts\" method=\"test\" type=\"POST\"\n query=\"par1=1&par2=2\" body_uri=\"/ts/test2?par3=3\"";
+	private static final String UNTERMINATED = "service=\"ts\" method=\"test\" type=\"POST\"\n query=\"par1=1&par2=2\" body_uri=\"/ts/test2?par3=3";
+
+	/**
+	 * 
+	 * @return parameters parsed from text without constant references
+	 */
+	@Benchmark
+	public JavadocerParameters parsePlain() {
+		return JavadocerParameters.parseUncached(PLAIN, null);
+	}
+
+	/**
+	 * 
+	 * @return parameters parsed from text with constant references, the constant values are cached by the resolver after the first call
+	 */
+	@Benchmark
+	public JavadocerParameters parseConstants() {
+		return JavadocerParameters.parseUncached(CONSTANTS, null);
+	}
+
+	/**
+	 * 
+	 * @return the error message for text with an unterminated value
+	 */
+	@Benchmark
+	public String parseUnterminated() {
+		try{
+			JavadocerParameters.parseUncached(UNTERMINATED, null);
+		} catch (IllegalArgumentException ex) {
+			return ex.getMessage();
+		}
+		throw new IllegalStateException("Unterminated value was accepted.");
+	}
+
+	/**
+	 * 
+	 * @return memoized parameters
+	 */
+	@Benchmark
+	public JavadocerParameters parseMemoized() {
+		return JavadocerParameters.parse(CONSTANTS);
+	}
+}
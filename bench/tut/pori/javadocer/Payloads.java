@@ -0,0 +1,175 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Generates XML and JSON responses for the benchmarks.
+ * 
+ * The generated documents resemble the responses of the REST services: a root element containing some status information and optionally an example element, the content of which is a list of records nested to the given depth.
+ * The content is indented inconsistently, and contains attributes, entities, comments and CDATA sections, so that all paths of the formatter are exercised.
+ * The JSON documents have the same structure: a root object containing the status information and optionally the member example, the value of which is an array of records.
+ * The output is deterministic for the given arguments.
+ */
+final class Payloads {
+	private static final String ELEMENT_EXAMPLE = "example";
+
+	/**
+	 * 
+	 */
+	private Payloads(){
+		// nothing needed
+	}
+
+	/**
+	 * 
+	 * @param preambleSize the approximate size in bytes of the content preceding the example
+	 * @param exampleSize the approximate size in bytes of the example content, if 0, the document has no example
+	 * @param depth the nesting depth of the records
+	 * @return UTF-8 encoded document
+	 */
+	public static byte[] createDocument(int preambleSize, int exampleSize, int depth) {
+		StringBuilder xml = new StringBuilder(preambleSize+exampleSize+256);
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<response xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">\n");
+		xml.append("  <status>200</status>\n  <info>");
+		appendRecords(xml, preambleSize, depth);
+		xml.append("</info>\n");
+		if(exampleSize > 0){
+			xml.append("<").append(ELEMENT_EXAMPLE).append("><records>");
+			appendRecords(xml, exampleSize, depth);
+			xml.append("</records></").append(ELEMENT_EXAMPLE).append(">\n");
+		}
+		xml.append("</response>\n");
+		return xml.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 
+	 * @param preambleSize the approximate size in bytes of the content preceding the example
+	 * @param exampleSize the approximate size in bytes of the example content, if 0, the document has no example
+	 * @param depth the nesting depth of the records
+	 * @return UTF-8 encoded JSON document
+	 */
+	public static byte[] createJsonDocument(int preambleSize, int exampleSize, int depth) {
+		StringBuilder json = new StringBuilder(preambleSize+exampleSize+256);
+		json.append("{\"status\": 200,\n  \"info\":[");
+		appendJsonRecords(json, preambleSize, depth);
+		json.append("]");
+		if(exampleSize > 0){
+			json.append(",\n\"").append(ELEMENT_EXAMPLE).append("\" : [");
+			appendJsonRecords(json, exampleSize, depth);
+			json.append("]");
+		}
+		json.append("}\n");
+		return json.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 
+	 * @param json
+	 * @param size the approximate number of characters to append
+	 * @param depth
+	 */
+	private static void appendJsonRecords(StringBuilder json, int size, int depth) {
+		int end = json.length()+size;
+		for(int id = 0; json.length() < end; ++id){
+			if(id > 0){
+				json.append(',');
+			}
+			appendJsonRecord(json, id, Math.max(1, depth));
+		}
+	}
+
+	/**
+	 * 
+	 * @param json
+	 * @param id
+	 * @param depth
+	 */
+	private static void appendJsonRecord(StringBuilder json, int id, int depth) {
+		for(int level = 0; level < depth; ++level){
+			json.append('\n');
+			for(int i = level % 7; i > 0; --i){ // inconsistent indentation
+				json.append(' ');
+			}
+			json.append("{\"id\":\"").append(id).append('-').append(level).append("\", \"type\": \"level").append(level).append("\",\"record\":");
+		}
+		switch(id % 4){
+			case 0:
+				json.append("{\"name\": \"Record ").append(id).append(" & \\\"its\\\" <content>\"}");
+				break;
+			case 1:
+				json.append("{\"value\": ").append(id).append(".5e-3, \"flags\": [true, false, null]}");
+				break;
+			case 2:
+				json.append("\"Some text\\twith   white space \u00e4\u00f6 \\u20ac ").append(id).append("\"");
+				break;
+			default:
+				json.append("{\"data\": [], \"empty\": {}}");
+				break;
+		}
+		for(int level = 0; level < depth; ++level){
+			json.append('}');
+		}
+	}
+
+	/**
+	 * 
+	 * @param xml
+	 * @param size the approximate number of characters to append
+	 * @param depth
+	 */
+	private static void appendRecords(StringBuilder xml, int size, int depth) {
+		int end = xml.length()+size;
+		for(int id = 0; xml.length() < end; ++id){
+			appendRecord(xml, id, Math.max(1, depth));
+		}
+	}
+
+	/**
+	 * 
+	 * @param xml
+	 * @param id
+	 * @param depth
+	 */
+	private static void appendRecord(StringBuilder xml, int id, int depth) {
+		for(int level = 0; level < depth; ++level){
+			xml.append('\n');
+			for(int i = level % 7; i > 0; --i){ // inconsistent indentation
+				xml.append(' ');
+			}
+			xml.append("<record id=\"").append(id).append('-').append(level).append("\" type=\"level").append(level).append("\">");
+		}
+		switch(id % 4){
+			case 0:
+				xml.append("<name>Record ").append(id).append(" &amp; its &lt;content&gt;</name>");
+				break;
+			case 1:
+				xml.append("<!-- record ").append(id).append(" --><value xs:type=\"xs:int\">").append(id).append("</value>");
+				break;
+			case 2:
+				xml.append("<text>\n    Some text\twith   white space \u00e4\u00f6 \u20ac ").append(id).append("\n  </text>");
+				break;
+			default:
+				xml.append("<data><![CDATA[<raw> & ").append(id).append("]]></data><empty/>");
+				break;
+		}
+		for(int level = 0; level < depth; ++level){
+			xml.append("</record>");
+		}
+	}
+}
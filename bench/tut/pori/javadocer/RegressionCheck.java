@@ -0,0 +1,337 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Checks for the regressions found in the response processing, run by the check target of the build. Each check throws {@link IllegalStateException} on failure.
+ * 
+ * The requests are sent to a {@link StandInServer} started in the same process.
+ * 
+ * Usage: RegressionCheck
+ */
+public final class RegressionCheck {
+	/** service name referenced by the constant reference check */
+	public static final String SERVICE = "service0";
+	private static final Logger LOGGER = Logger.getLogger(RegressionCheck.class);
+	private static final int LARGE_SIZE = 65536; // larger than the buffers of the parsers
+	private static final int STATUS_EXCEPTION = -1;
+	private static final String TAG = "service=\"service0\" method=\"method0\" type=\"GET\"";
+
+	/**
+	 * 
+	 */
+	private RegressionCheck(){
+		// nothing needed
+	}
+
+	/**
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		try(StandInServer server = new StandInServer(Collections.<String, String> emptyMap())){
+			System.setProperty(Javadocer.PROPERTY_REST_URI, server.getUri());
+			checkEmptyExample();
+			checkCdata();
+			checkJsonArray();
+			checkJsonByteOrderMark();
+			checkSnapshotKeys();
+			checkErrorPositions();
+			checkRelativeConstants();
+			checkDaemonExpiry(server);
+			checkDaemonClients();
+			LOGGER.info("All checks passed.");
+		} catch (Throwable ex) {
+			LOGGER.error(ex, ex);
+			System.exit(STATUS_EXCEPTION);
+		}
+	}
+
+	/**
+	 * The document must be printed as a whole, if the example element has no child element, i.e. the example is empty or contains only text
+	 * 
+	 * @throws Exception
+	 */
+	public static void checkEmptyExample() throws Exception {
+		try(Javadocer javadocer = new Javadocer(null, null)){
+			for(String example : new String[]{"<example/>", "<example>text only</example>"}){
+				String document = "<response>"+example+createRecords(LARGE_SIZE)+"<last/></response>";
+				String content = javadocer.format(new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)), false);
+				assertTrue(content != null && content.contains("<last/>"), "The whole document was not printed for: "+example);
+				assertTrue(javadocer.format(new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)), true) == null, "Example content found for: "+example);
+			}
+		}
+	}
+
+	/**
+	 * The CDATA sections must be printed in the same way as by the DOM serializer: the markup following a section is not indented until the next element, and the whitespace around a section is kept
+	 * 
+	 * @throws Exception
+	 */
+	public static void checkCdata() throws Exception {
+		String[][] documents = {
+			{"<r><a><![CDATA[x]]><c/></a></r>", "<r>\n  <a><![CDATA[x]]>\n    <c/>\n  </a>\n</r>\n"},
+			{"<r><![CDATA[ a<b ]]><k/><?pi data?></r>", "<r><![CDATA[ a<b ]]>\n  <k/>\n  <?pi data?>\n</r>\n"},
+			{"<r><a>  <![CDATA[x]]>  </a></r>", "<r>\n  <a>  <![CDATA[x]]>  </a>\n</r>\n"}
+		};
+		XmlFormatter formatter = new XmlFormatter();
+		for(String[] document : documents){
+			StringWriter writer = new StringWriter();
+			formatter.formatDocument(formatter.createReader(new ByteArrayInputStream(document[0].getBytes(StandardCharsets.UTF_8))), writer);
+			String expected = ("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"+document[1]).replace("\n", System.lineSeparator());
+			assertTrue(expected.equals(writer.toString()), "Invalid output for "+document[0]+": "+writer);
+		}
+	}
+
+	/**
+	 * The document must be printed as a whole, if the root value is not an object, and the value is larger than the buffer of the reader
+	 * 
+	 * @throws Exception
+	 */
+	public static void checkJsonArray() throws Exception {
+		StringBuilder json = new StringBuilder(LARGE_SIZE+32);
+		json.append('[');
+		for(int i = 0; json.length() < LARGE_SIZE; ++i){
+			json.append("{\"id\":");
+			json.append(i);
+			json.append("},");
+		}
+		json.append("\"last\"]");
+		try(Javadocer javadocer = new Javadocer(null, null)){
+			String content = javadocer.formatJson(new ByteArrayInputStream(json.toString().getBytes(StandardCharsets.UTF_8)), false);
+			assertTrue(content != null && content.contains("\"last\""), "The whole array was not printed.");
+			assertTrue(javadocer.formatJson(new ByteArrayInputStream(json.toString().getBytes(StandardCharsets.UTF_8)), true) == null, "Example content found in an array.");
+		}
+	}
+
+	/**
+	 * The byte order mark at the start of JSON content must be skipped, with and without an example
+	 * 
+	 * @throws Exception
+	 */
+	public static void checkJsonByteOrderMark() throws Exception {
+		try(Javadocer javadocer = new Javadocer(null, null)){
+			String content = javadocer.formatJson(new ByteArrayInputStream("\uFEFF{\"example\":{\"a\":1}}".getBytes(StandardCharsets.UTF_8)), true);
+			assertTrue(content != null && content.contains("\"a\": 1") && content.indexOf('\uFEFF') < 0, "The example was not printed: "+content);
+			content = javadocer.formatJson(new ByteArrayInputStream("\uFEFF[1]".getBytes(StandardCharsets.UTF_8)), false);
+			assertTrue(content != null && content.startsWith("["), "The document was not printed: "+content);
+		}
+	}
+
+	/**
+	 * Each tag must be replayed from the snapshot, when the tags were coalesced into a single request, but their parameters are normalized differently
+	 * 
+	 * @throws Exception
+	 */
+	public static void checkSnapshotKeys() throws Exception {
+		File file = File.createTempFile("check-", ".snapshot");
+		file.delete(); // record a fresh archive
+		try{
+			JavadocerParameters[] params = {JavadocerParameters.parse(TAG), JavadocerParameters.parse(TAG+" body_uri=\"service1/method1\"")}; // body_uri is ignored with GET
+			try(SnapshotArchive archive = new SnapshotArchive(file, SnapshotArchive.Mode.RECORD); Javadocer javadocer = new Javadocer(null, null, archive)){
+				for(JavadocerParameters p : params){
+					javadocer.retrieveContent(p);
+				}
+			}
+			try(SnapshotArchive archive = new SnapshotArchive(file, SnapshotArchive.Mode.REPLAY); Javadocer javadocer = new Javadocer(null, null, archive)){
+				for(JavadocerParameters p : params){
+					assertTrue(javadocer.retrieveContent(p) != null, "The tag was not replayed: "+p);
+				}
+				assertTrue(archive.getMissing().isEmpty(), "Tags missing from the snapshot: "+archive.getMissing());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * The syntax errors must report the position of the failing character, the end of the text if the text ends too early
+	 * 
+	 * @throws Exception
+	 */
+	public static void checkErrorPositions() throws Exception {
+		String[][] cases = { // text, position
+			{"service=\"ts\" method=test\"", "21"},
+			{"service=\"ts\" method=\"test", "26"},
+			{"service=\"ts\" method=\"[tut.pori.javadocer.RegressionCheck#TAG\"", "61"}
+		};
+		for(String[] c : cases){
+			String message = null;
+			try{
+				JavadocerParameters.parse(c[0]);
+			} catch (IllegalArgumentException ex) {
+				message = ex.getMessage();
+			}
+			assertTrue(message != null && message.contains(" at position "+c[1]+" in: "), "Bad error for: "+c[0]+", message: "+message);
+		}
+	}
+
+	/**
+	 * A constant reference with a class name relative to the location of the tag must be resolved in each location, not by the first resolved or parsed value
+	 * 
+	 * @throws Exception
+	 */
+	public static void checkRelativeConstants() throws Exception {
+		ConstantResolver resolver = new ConstantResolver();
+		for(String packageName : new String[]{"first", "second"}){
+			PackageSource source = new PackageSource(packageName);
+			assertTrue(packageName.equals(resolver.resolve("Constants#NAME", source)), "The constant was not resolved in the package: "+packageName);
+			JavadocerParameters params = JavadocerParameters.parse("service=\"[Constants#NAME]\" method=\"method0\" type=\"GET\"", source);
+			assertTrue(packageName.equals(params.getService()), "The tag was not parsed in the package: "+packageName);
+		}
+	}
+
+	/**
+	 * The daemon must request the content again, when the rendered fragment has expired
+	 * 
+	 * @param server
+	 * @throws Exception
+	 */
+	public static void checkDaemonExpiry(StandInServer server) throws Exception {
+		int port = 0;
+		try(ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())){
+			port = socket.getLocalPort();
+		}
+		final RenderDaemon daemon = new RenderDaemon(port, 1, 1);
+		Thread thread = new Thread("check-daemon"){
+			@Override
+			public void run() {
+				daemon.run();
+			}
+		};
+		thread.start();
+		try(RenderDaemon.Client client = new RenderDaemon.Client(port)){
+			long requests = server.getRequestCount();
+			assertTrue(client.render(TAG).getStatus() == RenderDaemon.Status.OK, "The tag was not rendered.");
+			assertTrue(server.getRequestCount() == requests+1, "The content was not requested.");
+			client.render(TAG);
+			assertTrue(server.getRequestCount() == requests+1, "The fragment was not kept.");
+			Thread.sleep(TimeUnit.SECONDS.toMillis(1)+100);
+			assertTrue(client.render(TAG).getStatus() == RenderDaemon.Status.OK, "The expired tag was not rendered.");
+			assertTrue(server.getRequestCount() == requests+2, "The content was not requested again after the fragment expired.");
+		} finally {
+			daemon.close();
+			thread.join();
+		}
+	}
+
+	/**
+	 * The daemon must serve new clients while more idle clients than render threads are connected, and must leave the tags with constant references to the client
+	 * 
+	 * @throws Exception
+	 */
+	public static void checkDaemonClients() throws Exception {
+		int port = 0;
+		try(ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())){
+			port = socket.getLocalPort();
+		}
+		final RenderDaemon daemon = new RenderDaemon(port, 1, 0);
+		Thread thread = new Thread("check-daemon"){
+			@Override
+			public void run() {
+				daemon.run();
+			}
+		};
+		thread.start();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try(RenderDaemon.Client idle = new RenderDaemon.Client(port); final RenderDaemon.Client client = new RenderDaemon.Client(port)){
+			assertTrue(idle.render(TAG).getStatus() == RenderDaemon.Status.OK, "The tag was not rendered.");
+			Future<RenderDaemon.Response> response = executor.submit(new Callable<RenderDaemon.Response>() {
+				@Override
+				public RenderDaemon.Response call() throws Exception {
+					return client.render(TAG);
+				}
+			});
+			assertTrue(response.get(10, TimeUnit.SECONDS).getStatus() == RenderDaemon.Status.OK, "The tag of the second client was not rendered.");
+			assertTrue(client.render("service=\"[tut.pori.javadocer.RegressionCheck#SERVICE]\" method=\"method0\" type=\"GET\"").getStatus() == RenderDaemon.Status.UNRESOLVED, "The tag with a constant reference was rendered by the daemon.");
+		} catch (TimeoutException ex) {
+			throw new IllegalStateException("The second client was not served while the first client was connected.", ex);
+		} finally {
+			executor.shutdownNow();
+			daemon.close();
+			thread.join();
+		}
+	}
+
+	/**
+	 * 
+	 * @param size
+	 * @return at least size characters of XML elements
+	 */
+	private static String createRecords(int size) {
+		StringBuilder xml = new StringBuilder(size+32);
+		for(int i = 0; xml.length() < size; ++i){
+			xml.append("<record><id>");
+			xml.append(i);
+			xml.append("</id></record>");
+		}
+		return xml.toString();
+	}
+
+	/**
+	 * 
+	 * @param condition
+	 * @param message
+	 * @throws IllegalStateException if the condition is false
+	 */
+	private static void assertTrue(boolean condition, String message) throws IllegalStateException {
+		if(!condition){
+			throw new IllegalStateException(message);
+		}
+	}
+
+	/**
+	 * Resolves the simple class names in the given package, the value of each constant is the package name
+	 * 
+	 */
+	private static class PackageSource implements ConstantResolver.Source {
+		private String _packageName = null;
+
+		/**
+		 * 
+		 * @param packageName
+		 */
+		public PackageSource(String packageName) {
+			_packageName = packageName;
+		}
+
+		@Override
+		public String getQualifiedName(String className) {
+			return (className.indexOf('.') < 0 ? _packageName+"."+className : className);
+		}
+
+		@Override
+		public Object getConstantValue(String qualifiedName, String fieldName) {
+			return (qualifiedName.startsWith(_packageName+".") ? _packageName : null);
+		}
+	} // class PackageSource
+}
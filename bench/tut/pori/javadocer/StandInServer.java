@@ -0,0 +1,249 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the REST services, used for measuring the engine without the real backend.
+ * 
+ * Serves example-wrapped XML or JSON documents (see {@link Payloads}) from the path /rest/[service]/[method] for GET, POST and DELETE requests. The server is configured by the following options:
+ * <ul>
+ * 	<li>port - the port to listen to, default is 0 (any free port)</li>
+ * 	<li>endpoints - comma separated list of service/method pairs to serve, other paths return 404, default is to serve all paths</li>
+ * 	<li>latency - mean latency of the responses in ms, default is 0</li>
+ * 	<li>latency_distribution - constant, uniform (0 to twice the mean) or exponential, default is constant</li>
+ * 	<li>size - approximate size of the example content in bytes, default is 4096</li>
+ * 	<li>depth - nesting depth of the example content, default is 4</li>
+ * 	<li>error_rate - the probability (0-1) of responding with 503, default is 0</li>
+ * 	<li>etag - if true, the responses have an ETag header and If-None-Match is answered with 304, default is false</li>
+ * 	<li>gzip - if true, the content is gzip encoded for the requests accepting it, default is false</li>
+ * 	<li>json - if true, JSON documents are served instead of XML, default is false</li>
+ * </ul>
+ * 
+ * The same document is served for all requests, and it is generated only once, so the server itself uses little CPU. This class is thread-safe.
+ */
+public class StandInServer implements Closeable {
+	private static final Logger LOGGER = Logger.getLogger(StandInServer.class);
+	private static final String PATH_PREFIX = "/rest/";
+	private static final String PROPERTY_NODELAY = "sun.net.httpserver.nodelay";
+	private byte[] _content = null;
+	private String _contentType = null;
+	private byte[] _contentGzip = null; // null if compression is disabled
+	private Set<String> _endpoints = null;
+	private double _errorRate = 0;
+	private boolean _etag = false;
+	private String _etagValue = null;
+	private ExecutorService _executor = null;
+	private long _latency = 0;
+	private Distribution _latencyDistribution = Distribution.CONSTANT;
+	private AtomicLong _notModified = new AtomicLong();
+	private AtomicLong _requests = new AtomicLong();
+	private HttpServer _server = null;
+	private AtomicLong _unavailable = new AtomicLong();
+
+	/**
+	 * the latency distribution
+	 * 
+	 */
+	public enum Distribution {
+		/** always the mean */
+		CONSTANT,
+		/** uniform from zero to twice the mean */
+		UNIFORM,
+		/** exponential with the given mean */
+		EXPONENTIAL;
+
+		/**
+		 * 
+		 * @param mean
+		 * @return random latency in ms
+		 */
+		public long next(long mean) {
+			switch(this){
+				case UNIFORM:
+					return (mean < 1 ? 0 : ThreadLocalRandom.current().nextLong(2*mean+1));
+				case EXPONENTIAL:
+					return (long) (-mean*Math.log(1-ThreadLocalRandom.current().nextDouble()));
+				default:
+					return mean;
+			}
+		}
+	} // enum Distribution
+
+	/**
+	 * Starts the server
+	 * 
+	 * @param options the options, see the class description
+	 * @throws IllegalArgumentException on invalid options
+	 * @throws IOException if the server cannot be started
+	 */
+	public StandInServer(Map<String, String> options) throws IllegalArgumentException, IOException {
+		try{
+			_latency = Long.parseLong(getOption(options, "latency", "0"));
+			_latencyDistribution = Distribution.valueOf(getOption(options, "latency_distribution", "constant").toUpperCase(Locale.ROOT));
+			_errorRate = Double.parseDouble(getOption(options, "error_rate", "0"));
+			_etag = Boolean.parseBoolean(getOption(options, "etag", "false"));
+			int size = Integer.parseInt(getOption(options, "size", "4096"));
+			int depth = Integer.parseInt(getOption(options, "depth", "4"));
+			if(Boolean.parseBoolean(getOption(options, "json", "false"))){
+				_content = Payloads.createJsonDocument(256, size, depth);
+				_contentType = "application/json";
+			}else{
+				_content = Payloads.createDocument(256, size, depth);
+				_contentType = "text/xml; charset=UTF-8";
+			}
+			if(Boolean.parseBoolean(getOption(options, "gzip", "false"))){
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(_content.length/4);
+				try(GZIPOutputStream out = new GZIPOutputStream(bytes)){
+					out.write(_content);
+				}
+				_contentGzip = bytes.toByteArray();
+			}
+			String endpoints = getOption(options, "endpoints", null);
+			if(!StringUtils.isBlank(endpoints)){
+				_endpoints = new HashSet<>(Arrays.asList(StringUtils.split(endpoints, ',')));
+			}
+			if(System.getProperty(PROPERTY_NODELAY) == null){
+				System.setProperty(PROPERTY_NODELAY, "true"); // otherwise, the headers and the content are delayed by Nagle's algorithm, read when the server is created
+			}
+			_server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(getOption(options, "port", "0"))), 0);
+		} catch (NumberFormatException ex) {
+			LOGGER.error(ex, ex);
+			throw new IllegalArgumentException("Bad server options: "+options);
+		}
+		_etagValue = "\""+DigestUtils.md5Hex(_content)+"\"";
+		_executor = Executors.newCachedThreadPool(); // the latency is simulated by sleeping, so do not limit the threads
+		_server.setExecutor(_executor);
+		_server.createContext(PATH_PREFIX, new Handler());
+		_server.start();
+		LOGGER.info("Stand-in server started: "+getUri()+", content size: "+_content.length+" bytes"+(_contentGzip == null ? "" : ", gzip encoded: "+_contentGzip.length+" bytes"));
+	}
+
+	/**
+	 * 
+	 * @param options
+	 * @param name
+	 * @param defaultValue
+	 * @return the value of the option or the default value if not set
+	 */
+	private static String getOption(Map<String, String> options, String name, String defaultValue) {
+		String value = options.get(name);
+		return (value == null ? defaultValue : value);
+	}
+
+	/**
+	 * 
+	 * @return the base uri of the server, i.e. the value for {@value tut.pori.javadocer.Javadocer#PROPERTY_REST_URI}
+	 */
+	public String getUri() {
+		return "http://"+_server.getAddress().getHostString()+":"+_server.getAddress().getPort()+PATH_PREFIX;
+	}
+
+	/**
+	 * 
+	 * @return the number of requests received
+	 */
+	public long getRequestCount() {
+		return _requests.get();
+	}
+
+	@Override
+	public void close() {
+		if(_server != null){
+			_server.stop(0);
+			_executor.shutdownNow();
+			_server = null;
+			LOGGER.info("Stand-in server stopped, requests: "+_requests.get()+", not modified: "+_notModified.get()+", unavailable: "+_unavailable.get());
+		}
+	}
+
+	/**
+	 * Serves the requests
+	 * 
+	 */
+	private class Handler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			_requests.incrementAndGet();
+			try(InputStream in = exchange.getRequestBody(); OutputStream out = exchange.getResponseBody()){
+				IOUtils.copy(in, NullOutputStream.NULL_OUTPUT_STREAM); // consume the body content
+				long latency = _latencyDistribution.next(_latency);
+				if(latency > 0){
+					Thread.sleep(latency);
+				}
+
+				String endpoint = StringUtils.removeStart(exchange.getRequestURI().getPath(), PATH_PREFIX);
+				if(_endpoints != null && !_endpoints.contains(endpoint)){
+					exchange.sendResponseHeaders(HttpStatus.SC_NOT_FOUND, -1);
+				}else if(_errorRate > 0 && ThreadLocalRandom.current().nextDouble() < _errorRate){
+					_unavailable.incrementAndGet();
+					exchange.sendResponseHeaders(HttpStatus.SC_SERVICE_UNAVAILABLE, -1);
+				}else if(_etag && _etagValue.equals(exchange.getRequestHeaders().getFirst(HttpHeaders.IF_NONE_MATCH))){
+					_notModified.incrementAndGet();
+					exchange.getResponseHeaders().set(HttpHeaders.ETAG, _etagValue);
+					exchange.getResponseHeaders().set(HttpHeaders.CONNECTION, "close"); // the server closes the connection after 304 anyway, tell the client not to reuse it
+					exchange.sendResponseHeaders(HttpStatus.SC_NOT_MODIFIED, -1);
+				}else{
+					exchange.getResponseHeaders().set(HttpHeaders.CONTENT_TYPE, _contentType);
+					if(_etag){
+						exchange.getResponseHeaders().set(HttpHeaders.ETAG, _etagValue);
+					}
+					String accept = exchange.getRequestHeaders().getFirst(HttpHeaders.ACCEPT_ENCODING);
+					if(_contentGzip != null && accept != null && accept.contains("gzip")){
+						exchange.getResponseHeaders().set(HttpHeaders.CONTENT_ENCODING, "gzip");
+						exchange.sendResponseHeaders(HttpStatus.SC_OK, _contentGzip.length);
+						out.write(_contentGzip);
+					}else{
+						exchange.sendResponseHeaders(HttpStatus.SC_OK, _content.length);
+						out.write(_content);
+					}
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				LOGGER.debug(ex, ex);
+			}
+		}
+	} // class Handler
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.Elements;
+
+import org.apache.log4j.Logger;
+
+import com.sun.source.doctree.DocCommentTree;
+import com.sun.source.doctree.DocTree;
+import com.sun.source.doctree.UnknownInlineTagTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.LineMap;
+import com.sun.source.util.DocTrees;
+import com.sun.source.util.TreePath;
+
+import jdk.javadoc.doclet.Doclet;
+import jdk.javadoc.doclet.DocletEnvironment;
+import jdk.javadoc.doclet.Taglet;
+
+/**
+ * Implementation of {@link Restlet} for the taglet API of Java 9 and later (jdk.javadoc.doclet), required on Java 13 and later, where the old taglet API has been removed.
+ * 
+ * The tags are rendered by {@link TagRenderer} as with {@link Restlet}, and the constant references are resolved from the language model of the javadoc.
+ * 
+ * Use with: javadoc -taglet tut.pori.javadocer.RestletTaglet -tagletpath [restlet.jar and the libraries]
+ */
+public class RestletTaglet implements Taglet {
+	/** The name of the tag. Use this name in your code as {&#64;NAME} */
+	private static final String NAME = "doc.restlet";
+	private static final Logger LOGGER = Logger.getLogger(RestletTaglet.class);
+	private Elements _elements = null;
+	private DocTrees _trees = null;
+
+	@Override
+	public void init(DocletEnvironment env, Doclet doclet) {
+		_elements = env.getElementUtils();
+		_trees = env.getDocTrees();
+	}
+
+	/**
+	 * Return the name of this custom tag. Use this name in your code. E.g. {&#64;NAME}.
+	 */
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public Set<Location> getAllowedLocations() {
+		return EnumSet.allOf(Location.class);
+	}
+
+	/**
+	 * Returns true because this taglet is only used as a inline tag.
+	 */
+	@Override
+	public boolean isInlineTag() {
+		return true;
+	}
+
+	/**
+	 * @param tags the tags detected by Javadoc, a single tag for inline tags
+	 * @param element the element containing the tag
+	 * @return The output formatted as HTML.
+	 */
+	@Override
+	public String toString(List<? extends DocTree> tags, Element element) {
+		StringBuilder html = new StringBuilder();
+		for(DocTree tag : tags){
+			String output = TagRenderer.render(getText(tag), getPosition(tag, element), new ModelSource(_elements, element));
+			if(output != null){
+				html.append(output);
+			}
+		}
+		return html.toString();
+	}
+
+	/**
+	 * 
+	 * @param tag
+	 * @return the text of the tag without the tag name
+	 */
+	static String getText(DocTree tag) {
+		if(!(tag instanceof UnknownInlineTagTree)){
+			return "";
+		}
+		StringBuilder text = new StringBuilder();
+		for(DocTree content : ((UnknownInlineTagTree) tag).getContent()){
+			text.append(content.toString());
+		}
+		return text.toString();
+	}
+
+	/**
+	 * 
+	 * @param tag
+	 * @param element
+	 * @return the source position of the tag as file:line:column or null if not known, e.g. for the overview documentation
+	 */
+	private String getPosition(DocTree tag, Element element) {
+		TreePath path = (element == null ? null : _trees.getPath(element));
+		DocCommentTree comment = (element == null ? null : _trees.getDocCommentTree(element));
+		if(path == null || comment == null){
+			return null;
+		}
+		CompilationUnitTree unit = path.getCompilationUnit();
+		long position = _trees.getSourcePositions().getStartPosition(unit, comment, tag);
+		if(position < 0){
+			return unit.getSourceFile().getName();
+		}
+		LineMap lines = unit.getLineMap();
+		return unit.getSourceFile().getName()+":"+lines.getLineNumber(position)+":"+lines.getColumnNumber(position);
+	}
+
+	/**
+	 * Resolves the constant values from the language model of the javadoc
+	 * 
+	 */
+	static class ModelSource implements ConstantResolver.Source {
+		private TypeElement _context = null;
+		private Elements _elements = null;
+
+		/**
+		 * 
+		 * @param elements
+		 * @param holder the element containing the tag, used for resolving the class names relative to its package
+		 */
+		public ModelSource(Elements elements, Element holder) {
+			_elements = elements;
+			for(Element e = holder; e != null; e = e.getEnclosingElement()){
+				if(e instanceof TypeElement){
+					_context = (TypeElement) e;
+					break;
+				}
+			} // else package, module or overview documentation, no class context
+		}
+
+		@Override
+		public String getQualifiedName(String className) {
+			TypeElement type = _elements.getTypeElement(className);
+			if(type == null && _context != null){
+				type = _elements.getTypeElement(_elements.getPackageOf(_context).getQualifiedName()+"."+className);
+			}
+			if(type == null){
+				LOGGER.debug("Class not found by javadoc: "+className);
+				return null;
+			}
+			return type.getQualifiedName().toString();
+		}
+
+		@Override
+		public Object getConstantValue(String qualifiedName, String fieldName) {
+			TypeElement type = _elements.getTypeElement(qualifiedName);
+			if(type == null){
+				return null;
+			}
+			VariableElement field = findField(type, fieldName);
+			return (field == null ? null : field.getConstantValue());
+		}
+
+		/**
+		 * 
+		 * @param type
+		 * @param fieldName
+		 * @return the declared field regardless of the access modifiers or null if not found
+		 */
+		static VariableElement findField(TypeElement type, String fieldName) {
+			for(Element e : type.getEnclosedElements()){
+				if((e.getKind() == ElementKind.FIELD || e.getKind() == ElementKind.ENUM_CONSTANT) && e.getSimpleName().contentEquals(fieldName)){
+					return (VariableElement) e;
+				}
+			}
+			return null;
+		}
+	} // class ModelSource
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.Elements;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+import com.sun.source.doctree.DocCommentTree;
+import com.sun.source.doctree.DocTree;
+import com.sun.source.doctree.ReferenceTree;
+import com.sun.source.doctree.ValueTree;
+import com.sun.source.util.DocTreePath;
+import com.sun.source.util.DocTrees;
+import com.sun.source.util.TreePath;
+
+import jdk.javadoc.doclet.Doclet;
+import jdk.javadoc.doclet.DocletEnvironment;
+import jdk.javadoc.doclet.Taglet;
+
+/**
+ * Implementation of {@link Valuelet} for the taglet API of Java 9 and later (jdk.javadoc.doclet), replaces the default \@value tag by printing the value without the "" around it, has no effect on the RESTlet functionality.
+ * 
+ * The new taglet API does not give access to the default implementation, so the value is resolved from the language model of the javadoc, and linked to the documentation of the field, if the field is documented.
+ * The link assumes the layout of the standard doclet for sources without modules, i.e. [package path]/[class name].html#[field name].
+ * 
+ * Use with: javadoc -taglet tut.pori.javadocer.ValueletTaglet -tagletpath [restlet.jar and the libraries]
+ */
+public class ValueletTaglet implements Taglet {
+	private static final String NAME = "value";
+	private static final Logger LOGGER = Logger.getLogger(ValueletTaglet.class);
+	private Elements _elements = null;
+	private DocletEnvironment _environment = null;
+	private DocTrees _trees = null;
+
+	@Override
+	public void init(DocletEnvironment env, Doclet doclet) {
+		_environment = env;
+		_elements = env.getElementUtils();
+		_trees = env.getDocTrees();
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public Set<Location> getAllowedLocations() {
+		return EnumSet.allOf(Location.class);
+	}
+
+	@Override
+	public boolean isInlineTag() {
+		return true;
+	}
+
+	@Override
+	public String toString(List<? extends DocTree> tags, Element element) {
+		StringBuilder html = new StringBuilder();
+		for(DocTree tag : tags){
+			VariableElement field = findField(tag, element);
+			Object value = (field == null ? null : field.getConstantValue());
+			if(value == null){
+				LOGGER.warn("Invalid or non-constant reference in \\@value: "+tag.toString()+(element == null ? "" : ", in: "+element.toString()));
+				continue;
+			}
+			String text = StringEscapeUtils.escapeHtml4(getValueExpression(value));
+			if(field.equals(element) || !_environment.isIncluded(field.getEnclosingElement())){ // no link to the field itself or to undocumented classes
+				html.append(text);
+			}else{
+				html.append("<a href=\"");
+				html.append(getLink(element, field));
+				html.append("\">");
+				html.append(text);
+				html.append("</a>");
+			}
+		}
+		return html.toString();
+	}
+
+	/**
+	 * 
+	 * @param tag
+	 * @param element
+	 * @return the field referenced by the tag, the element itself if the tag has no reference, or null if not found
+	 */
+	private VariableElement findField(DocTree tag, Element element) {
+		ReferenceTree reference = (tag instanceof ValueTree ? ((ValueTree) tag).getReference() : null);
+		if(reference == null){
+			String signature = RestletTaglet.getText(tag).trim(); // not parsed by the javadoc
+			if(StringUtils.isEmpty(signature)){
+				return (element instanceof VariableElement ? (VariableElement) element : null);
+			}
+			return findField(signature, element);
+		}
+
+		TreePath path = (element == null ? null : _trees.getPath(element));
+		DocCommentTree comment = (element == null ? null : _trees.getDocCommentTree(element));
+		if(path != null && comment != null){
+			Element referenced = _trees.getElement(new DocTreePath(new DocTreePath(path, comment), reference)); // resolved as in the source, e.g. using the imports
+			if(referenced instanceof VariableElement){
+				return (VariableElement) referenced;
+			}
+		}
+		return findField(reference.getSignature(), element);
+	}
+
+	/**
+	 * 
+	 * @param signature reference of the form [package.class]#field
+	 * @param element
+	 * @return the field or null if not found
+	 */
+	private VariableElement findField(String signature, Element element) {
+		String[] parts = StringUtils.split(signature, '#');
+		if(parts.length == 1 && signature.startsWith("#")){ // field of the enclosing class
+			for(Element e = element; e != null; e = e.getEnclosingElement()){
+				if(e instanceof TypeElement){
+					return RestletTaglet.ModelSource.findField((TypeElement) e, parts[0]);
+				}
+			}
+			return null;
+		}else if(parts.length != 2){
+			return null;
+		}
+		TypeElement type = _elements.getTypeElement(parts[0]);
+		return (type == null ? null : RestletTaglet.ModelSource.findField(type, parts[1]));
+	}
+
+	/**
+	 * 
+	 * @param value
+	 * @return the value as printed by the default \@value tag, without the "" around strings and '' around characters
+	 */
+	private static String getValueExpression(Object value) {
+		if(value instanceof Long){
+			return value+"L";
+		}else if(value instanceof Float){
+			return value+"f";
+		}else{
+			return value.toString();
+		}
+	}
+
+	/**
+	 * 
+	 * @param from the documented element containing the tag
+	 * @param field
+	 * @return relative link to the documentation of the field
+	 */
+	private String getLink(Element from, VariableElement field) {
+		StringBuilder href = new StringBuilder();
+		PackageElement fromPackage = getPackage(from);
+		if(fromPackage != null && !fromPackage.isUnnamed()){
+			for(int i=StringUtils.countMatches(fromPackage.getQualifiedName(), '.');i>=0;--i){
+				href.append("../");
+			}
+		}
+		TypeElement type = (TypeElement) field.getEnclosingElement();
+		String packageName = _elements.getPackageOf(type).getQualifiedName().toString();
+		String className = type.getQualifiedName().toString();
+		if(!packageName.isEmpty()){
+			href.append(packageName.replace('.', '/'));
+			href.append('/');
+			className = className.substring(packageName.length()+1); // nested classes are named Outer.Inner
+		}
+		href.append(className);
+		href.append(".html#");
+		href.append(field.getSimpleName());
+		return href.toString();
+	}
+
+	/**
+	 * 
+	 * @param element
+	 * @return the package of the element or null if none, e.g. for the overview documentation
+	 */
+	private PackageElement getPackage(Element element) {
+		if(element == null || element.getKind() == ElementKind.MODULE){
+			return null;
+		}
+		return _elements.getPackageOf(element);
+	}
+}
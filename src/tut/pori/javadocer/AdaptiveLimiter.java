@@ -0,0 +1,119 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Concurrency limit which adapts to the load of the server using additive increase, multiplicative decrease (AIMD).
+ * 
+ * The limit is increased by one for each full window of requests completed in normal time, and halved when the server responds that it is overloaded or when a request takes considerably longer than the smoothed latency of the previous requests.
+ * The requests which were already in flight when the limit was decreased do not decrease it again. The limit is always between one and the given maximum.
+ * 
+ * This class is thread-safe.
+ */
+public class AdaptiveLimiter {
+	private static final double BACKOFF_RATIO = 0.5;
+	private static final Logger LOGGER = Logger.getLogger(AdaptiveLimiter.class);
+	private static final double LATENCY_SMOOTHING = 0.1; // weight of the latest sample in the smoothed latency
+	private static final long LATENCY_THRESHOLD_MIN = 100; // in ms, faster requests are never considered as a sign of overload, e.g. cached responses would make the smoothed latency very small
+	private static final double LATENCY_TOLERANCE = 3; // requests taking longer than this times the smoothed latency are considered as a sign of overload
+	private int _ignored = 0; // the number of requests started before the latest decrease, which are still in flight
+	private int _inFlight = 0;
+	private double _latency = -1; // smoothed latency in ms, or -1 if not known
+	private double _limit = 1;
+	private int _maxLimit = 1;
+	private String _name = null;
+
+	/**
+	 * 
+	 * @param name name of the limited resource, used for logging
+	 * @param maxLimit the maximum limit
+	 * @throws IllegalArgumentException on invalid limit
+	 */
+	public AdaptiveLimiter(String name, int maxLimit) throws IllegalArgumentException {
+		if(maxLimit < 1){
+			throw new IllegalArgumentException("Invalid limit: "+maxLimit);
+		}
+		_name = name;
+		_maxLimit = maxLimit;
+		_limit = Math.max(1, maxLimit/2); // leave room for growing, and avoid starting with a burst
+	}
+
+	/**
+	 * Waits until the number of requests in flight is below the current limit
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while(_inFlight >= getLimit()){
+			wait();
+		}
+		++_inFlight;
+	}
+
+	/**
+	 * Releases a request acquired by {@link #acquire()}, and adjusts the limit
+	 * 
+	 * @param latency the duration of the request in ms
+	 * @param overloaded true if the server responded that it is overloaded (e.g. HTTP 429 or 503)
+	 */
+	public synchronized void release(long latency, boolean overloaded) {
+		--_inFlight;
+		if(_ignored > 0){ // already reacted to
+			--_ignored;
+		}else if(overloaded){
+			backOff("Server overloaded");
+		}else if(_latency >= 0 && latency > Math.max(LATENCY_THRESHOLD_MIN, _latency*LATENCY_TOLERANCE)){
+			backOff("Latency "+latency+" ms");
+		}else{
+			_limit = Math.min(_maxLimit, _limit+1/_limit);
+		}
+		if(!overloaded){
+			_latency = (_latency < 0 ? latency : _latency+LATENCY_SMOOTHING*(latency-_latency));
+		}
+		notifyAll();
+	}
+
+	/**
+	 * 
+	 * @param reason
+	 */
+	private void backOff(String reason) {
+		double limit = Math.max(1, _limit*BACKOFF_RATIO);
+		if((int) limit < (int) _limit){
+			LOGGER.debug(reason+", decreasing the limit of "+_name+" to "+(int) limit);
+		}
+		_limit = limit;
+		_ignored = _inFlight;
+	}
+
+	/**
+	 * 
+	 * @return the current limit
+	 */
+	public synchronized int getLimit() {
+		return (int) _limit;
+	}
+
+	/**
+	 * @return the name and the current limit
+	 */
+	@Override
+	public String toString() {
+		return _name+"="+getLimit();
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Resolves constant references of the form package.class#constant.
+ * 
+ * The value is first looked up from the given {@link Source}, e.g. from the constant values known by the javadoc, which does not require the referenced class to be compiled.
+ * If the source cannot resolve the value, the value is read from the compiled class using reflection, in which case the class must be in the class path and the reference must use the fully qualified class name.
+ * 
+ * The source may resolve the class names relative to the location of the reference, e.g. the imports and the package of the documented class. The resolved values are cached by the fully qualified class name, so the same relative reference can refer to different constants in different locations. This class is thread-safe.
+ */
+public class ConstantResolver {
+	private static final Logger LOGGER = Logger.getLogger(ConstantResolver.class);
+	private ConcurrentMap<String, Object> _resolved = new ConcurrentHashMap<>(); // path with the qualified class name - value
+
+	/**
+	 * Source for constant values
+	 * 
+	 */
+	public interface Source {
+		/**
+		 * 
+		 * @param className the class name as given in the reference
+		 * @return the fully qualified name of the class in the context of this source or null if not known
+		 */
+		public String getQualifiedName(String className);
+
+		/**
+		 * 
+		 * @param qualifiedName the fully qualified class name
+		 * @param fieldName
+		 * @return the compile-time constant value of the field or null if not known
+		 */
+		public Object getConstantValue(String qualifiedName, String fieldName);
+	} // interface Source
+
+	/**
+	 * 
+	 * @param path valid initialized constant path, e.g. package.class#constant
+	 * @param source the source used before reflection, may be null
+	 * @return the value referenced by the given path
+	 * @throws IllegalArgumentException
+	 */
+	public Object resolve(String path, Source source) throws IllegalArgumentException {
+		String[] parts = StringUtils.split(path, '#');
+		if(parts.length != 2){
+			throw new IllegalArgumentException("Invalid path: "+path);
+		}
+		String className = (source == null ? null : source.getQualifiedName(parts[0]));
+		if(className == null){ // resolved by reflection, which requires the qualified name
+			className = parts[0];
+		}
+		String key = className+'#'+parts[1];
+		Object value = _resolved.get(key);
+		if(value != null){
+			return value;
+		}
+
+		if(source != null){
+			value = source.getConstantValue(className, parts[1]);
+		}
+		if(value == null){
+			LOGGER.debug("Using reflection to resolve: "+key);
+			value = lookupField(className, parts[1]);
+			if(value == null){
+				throw new IllegalArgumentException("Uninitialized constant: "+path);
+			}
+		}
+		_resolved.putIfAbsent(key, value);
+		return value;
+	}
+
+	/**
+	 * 
+	 * @param className
+	 * @param fieldName
+	 * @return the value of the static field
+	 * @throws IllegalArgumentException
+	 */
+	private static Object lookupField(String className, String fieldName) throws IllegalArgumentException {
+		try {
+			Field field = Class.forName(className).getDeclaredField(fieldName);
+			field.setAccessible(true); // override protected and private
+			return field.get(null);
+		} catch (ClassNotFoundException | NoSuchFieldException | SecurityException | IllegalAccessException ex) {
+			LOGGER.error(ex, ex);
+			throw new IllegalArgumentException("Invalid path: "+className+'#'+fieldName);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Collects the failed tags of a single javadoc run.
+ * 
+ * The number of failures tolerated is defined by the system property {@value tut.pori.javadocer.FailureBudget#PROPERTY_FAILURE_BUDGET}, when the budget is exceeded, the run should be aborted.
+ * If the system property {@value tut.pori.javadocer.FailureBudget#PROPERTY_FAILURE_REPORT} is set, each failure is appended to the given file as soon as it occurs, so that the build can fail after the run with the complete list of failures.
+ * 
+ * This class is thread-safe.
+ */
+public class FailureBudget {
+	/** System property name used to define the number of failed tags tolerated, default is 0, i.e. the first failure aborts the run */
+	public static final String PROPERTY_FAILURE_BUDGET = "tut.pori.javadocer.failure_budget";
+	/** System property name used to define the file the failures are written to, the file is removed when the budget is created */
+	public static final String PROPERTY_FAILURE_REPORT = "tut.pori.javadocer.failure_report";
+	private static final Logger LOGGER = Logger.getLogger(FailureBudget.class);
+	private int _budget = 0;
+	private List<String> _failures = new ArrayList<>();
+	private File _report = null;
+
+	/**
+	 * 
+	 * @param budget the number of failures tolerated
+	 * @param report the file the failures are written to or null if none
+	 */
+	public FailureBudget(int budget, File report) {
+		_budget = budget;
+		_report = report;
+		if(report != null && report.exists() && !report.delete()){
+			LOGGER.warn("Failed to remove the old report: "+report.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * 
+	 * @return budget configured using the system properties
+	 * @throws IllegalArgumentException on invalid configuration
+	 */
+	public static FailureBudget fromSystemProperties() throws IllegalArgumentException {
+		String report = System.getProperty(PROPERTY_FAILURE_REPORT);
+		try{
+			return new FailureBudget(Integer.parseInt(System.getProperty(PROPERTY_FAILURE_BUDGET, "0")), (StringUtils.isBlank(report) ? null : new File(report)));
+		} catch (NumberFormatException ex) {
+			LOGGER.error(ex, ex);
+			throw new IllegalArgumentException("Bad "+PROPERTY_FAILURE_BUDGET);
+		}
+	}
+
+	/**
+	 * Records the failure
+	 * 
+	 * @param position the source position of the failed tag
+	 * @param text the text of the failed tag
+	 * @param ex the cause of the failure
+	 * @return false if the budget has been exceeded
+	 */
+	public synchronized boolean add(String position, String text, Throwable ex) {
+		String failure = position+": {@doc.restlet "+text+"}: "+ex.toString();
+		_failures.add(failure);
+		if(_report != null){
+			try {
+				FileUtils.writeStringToFile(_report, failure+System.lineSeparator(), StandardCharsets.UTF_8, true);
+			} catch (IOException ex1) {
+				LOGGER.error("Failed to write the report: "+_report.getAbsolutePath(), ex1);
+			}
+		}
+		return (_failures.size() <= _budget);
+	}
+
+	/**
+	 * 
+	 * @return all failures recorded so far
+	 */
+	public synchronized List<String> getFailures() {
+		return new ArrayList<>(_failures);
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Store for the HTML fragments rendered by {@link Prefetcher}.
+ * 
+ * The fragments are keyed by the hash of the tag text (see {@link #getKey(String)}), so that {@link Restlet} can look up a fragment without parsing the tag or resolving the constant references.
+ * The store is either a single file, which is read to the memory when opened, or a directory containing a file for each fragment, in which case the fragments are read on demand.
+ * 
+ * The constant references are resolved regardless of the context of the tag, so the references should use fully qualified class names, as with {@link ConstantResolver}. This class is thread-safe.
+ */
+public final class FragmentStore {
+	/** System property name used to define the file or directory created by {@link Prefetcher} */
+	public static final String PROPERTY_PREFETCH_FILE = "tut.pori.javadocer.prefetch_file";
+	private static final String FRAGMENT_SUFFIX = ".html";
+	private static final Pattern LINE_PREFIX_PATTERN = Pattern.compile("\\s*\\r?\\n\\s*\\*?\\s*"); // line breaks, the leading * of the comment lines (removed by the javadoc) and the indentation
+	private static final Logger LOGGER = Logger.getLogger(FragmentStore.class);
+	private static final int STORE_VERSION = 2;
+	private File _directory = null; // directory store only
+	private Map<String, String> _fragments = null; // single file store only
+
+	/**
+	 * 
+	 * @param directory
+	 * @param fragments
+	 */
+	private FragmentStore(File directory, Map<String, String> fragments){
+		_directory = directory;
+		_fragments = fragments;
+	}
+
+	/**
+	 * 
+	 * @param tagText the text of the tag as in the source file or as given by the javadoc
+	 * @return the key of the tag, the same for the source text and the javadoc text of the tag
+	 */
+	public static String getKey(String tagText) {
+		return DigestUtils.sha256Hex(normalize(tagText));
+	}
+
+	/**
+	 * 
+	 * @param tagText
+	 * @return the tag text without the line breaks and the leading * of the comment lines
+	 */
+	public static String normalize(String tagText) {
+		return LINE_PREFIX_PATTERN.matcher(tagText).replaceAll(" ").trim();
+	}
+
+	/**
+	 * 
+	 * @param tagText
+	 * @return the fragment for the given tag or null if not found
+	 */
+	public String get(String tagText) {
+		String key = getKey(tagText);
+		if(_fragments != null){
+			return _fragments.get(key);
+		}
+		File file = new File(_directory, key+FRAGMENT_SUFFIX);
+		if(!file.isFile()){
+			return null;
+		}
+		try {
+			return FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+		} catch (IOException ex) {
+			LOGGER.warn("Failed to read fragment: "+file.getAbsolutePath(), ex);
+			return null;
+		}
+	}
+
+	/**
+	 * 
+	 * @param file the store file or directory
+	 * @return the store
+	 * @throws IOException
+	 */
+	public static FragmentStore open(File file) throws IOException {
+		if(file.isDirectory()){
+			return new FragmentStore(file, null);
+		}
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+			if(in.readInt() != STORE_VERSION){
+				throw new IOException("Unsupported file: "+file.getAbsolutePath());
+			}
+			int count = in.readInt();
+			Map<String, String> fragments = new HashMap<>(count*2);
+			for(int i=0;i<count;++i){
+				String key = in.readUTF();
+				byte[] content = new byte[in.readInt()];
+				in.readFully(content);
+				fragments.put(key, new String(content, StandardCharsets.UTF_8));
+			}
+			return new FragmentStore(null, fragments);
+		}
+	}
+
+	/**
+	 * 
+	 * @return the store defined by the system property {@value tut.pori.javadocer.FragmentStore#PROPERTY_PREFETCH_FILE} or empty store if the property is not set or the store cannot be read
+	 */
+	public static FragmentStore fromSystemProperties() {
+		String path = System.getProperty(PROPERTY_PREFETCH_FILE);
+		if(path == null){
+			return new FragmentStore(null, new HashMap<String, String>(0));
+		}
+		File file = new File(path);
+		if(!file.exists()){
+			LOGGER.warn("Prefetch file not found: "+file.getAbsolutePath());
+			return new FragmentStore(null, new HashMap<String, String>(0));
+		}
+		try {
+			FragmentStore store = open(file);
+			LOGGER.debug((store._fragments == null ? "Using prefetch directory: "+file.getAbsolutePath() : "Loaded "+store._fragments.size()+" prefetched fragments."));
+			return store;
+		} catch (IOException ex) {
+			LOGGER.warn("Failed to read prefetch file: "+file.getAbsolutePath(), ex);
+			return new FragmentStore(null, new HashMap<String, String>(0));
+		}
+	}
+
+	/**
+	 * Writes the fragments to the given file, or if the file is an existing directory, each fragment to a separate file in the directory
+	 * 
+	 * @param file
+	 * @param fragments the fragments keyed by {@link #getKey(String)}
+	 * @throws IOException
+	 */
+	public static void write(File file, Map<String, String> fragments) throws IOException {
+		if(file.isDirectory()){
+			for(Map.Entry<String, String> e : fragments.entrySet()){
+				File temp = new File(file, e.getKey()+".tmp"); // do not leave partial fragments, if interrupted
+				FileUtils.writeStringToFile(temp, e.getValue(), StandardCharsets.UTF_8);
+				File target = new File(file, e.getKey()+FRAGMENT_SUFFIX);
+				if(target.exists() && !target.delete() || !temp.renameTo(target)){
+					throw new IOException("Failed to write fragment: "+target.getAbsolutePath());
+				}
+			}
+			return;
+		}
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))){
+			out.writeInt(STORE_VERSION);
+			out.writeInt(fragments.size());
+			for(Map.Entry<String, String> e : fragments.entrySet()){
+				out.writeUTF(e.getKey());
+				byte[] content = e.getValue().getBytes(StandardCharsets.UTF_8);
+				out.writeInt(content.length);
+				out.write(content);
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.Writer;
+
+import org.apache.commons.lang3.text.translate.EntityArrays;
+
+/**
+ * Writer which escapes the written characters for HTML and collects them inside a &lt;pre&gt; element.
+ * 
+ * The characters are escaped in the same way as by {@link org.apache.commons.lang3.StringEscapeUtils#escapeHtml4(String)}, but the escaped content, and the start and end tags of the element are written directly to a single buffer.
+ * The element is ended by {@link #close()}, after which {@link #toString()} returns the complete HTML. The content can be highlighted by wrapping parts of it in &lt;span&gt; elements, see {@link HtmlRenderer}.
+ * 
+ * The instances are not thread-safe.
+ */
+public class HtmlEscapingWriter extends Writer {
+	private static final String[] ESCAPES; // escaped form of each character, or null if the character is written as-is
+	private static final String PRE_END = "</pre>";
+	private static final String PRE_START = "<pre>";
+	private static final String SPAN_END = "</span>";
+	private static final String SPAN_START = "<span class=\"";
+	private static final String SPAN_START_END = "\">";
+	private boolean _closed = false;
+	private StringBuilder _html = null;
+	static{
+		String[][][] tables = {EntityArrays.BASIC_ESCAPE(), EntityArrays.ISO8859_1_ESCAPE(), EntityArrays.HTML40_EXTENDED_ESCAPE()}; // the tables used by escapeHtml4
+		char max = 0;
+		for(String[][] table : tables){
+			for(String[] escape : table){
+				max = (char) Math.max(max, escape[0].charAt(0));
+			}
+		}
+		ESCAPES = new String[max+1];
+		for(String[][] table : tables){
+			for(String[] escape : table){
+				ESCAPES[escape[0].charAt(0)] = escape[1];
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param capacity the expected length of the escaped content, not including the element tags
+	 */
+	public HtmlEscapingWriter(int capacity) {
+		_html = new StringBuilder(capacity+PRE_START.length()+PRE_END.length());
+		_html.append(PRE_START);
+	}
+
+	/**
+	 * 
+	 * @param content
+	 * @return the given content escaped and wrapped in a &lt;pre&gt; element
+	 */
+	public static String toPreformatted(String content) {
+		HtmlEscapingWriter writer = new HtmlEscapingWriter(getEscapedLength(content));
+		writer.write(content, 0, content.length());
+		writer.close();
+		return writer.toString();
+	}
+
+	/**
+	 * 
+	 * @param content
+	 * @return the length of the given content after escaping
+	 */
+	public static int getEscapedLength(CharSequence content) {
+		int length = 0;
+		for(int i=0, count=content.length();i<count;++i){
+			char c = content.charAt(i);
+			String escape = (c < ESCAPES.length ? ESCAPES[c] : null);
+			length += (escape == null ? 1 : escape.length());
+		}
+		return length;
+	}
+
+	@Override
+	public void write(int c) {
+		escape((char) c);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		for(int i=off, end=off+len;i<end;++i){
+			escape(cbuf[i]);
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		for(int i=off, end=off+len;i<end;++i){
+			escape(str.charAt(i));
+		}
+	}
+
+	/**
+	 * Starts a &lt;span&gt; element, the following content is written inside the element until {@link #endSpan()}
+	 * 
+	 * @param cssClass the class of the element, written as-is
+	 * @throws IllegalStateException if the writer has been closed
+	 */
+	public void startSpan(String cssClass) throws IllegalStateException {
+		checkClosed();
+		_html.append(SPAN_START).append(cssClass).append(SPAN_START_END);
+	}
+
+	/**
+	 * Ends the &lt;span&gt; element started by {@link #startSpan(String)}
+	 * 
+	 * @throws IllegalStateException if the writer has been closed
+	 */
+	public void endSpan() throws IllegalStateException {
+		checkClosed();
+		_html.append(SPAN_END);
+	}
+
+	/**
+	 * 
+	 * @throws IllegalStateException if the writer has been closed
+	 */
+	private void checkClosed() throws IllegalStateException {
+		if(_closed){
+			throw new IllegalStateException("The writer has been closed.");
+		}
+	}
+
+	/**
+	 * 
+	 * @param c
+	 * @throws IllegalStateException if the writer has been closed
+	 */
+	private void escape(char c) throws IllegalStateException {
+		checkClosed();
+		String escape = (c < ESCAPES.length ? ESCAPES[c] : null);
+		if(escape == null){
+			_html.append(c);
+		}else{
+			_html.append(escape);
+		}
+	}
+
+	@Override
+	public void flush() {
+		// nothing needed
+	}
+
+	/**
+	 * Ends the &lt;pre&gt; element, further writes are not allowed
+	 */
+	@Override
+	public void close() {
+		if(!_closed){
+			_html.append(PRE_END);
+			_closed = true;
+		}
+	}
+
+	/**
+	 * @return the HTML written so far, the complete element if the writer has been closed
+	 */
+	@Override
+	public String toString() {
+		return _html.toString();
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.ParseException;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Renders the formatted content of the tags as HTML.
+ * 
+ * By default, the content is escaped and wrapped in a &lt;pre&gt; element as-is, see {@link HtmlEscapingWriter#toPreformatted(String)}. The rendering is configured by the following system properties:
+ * <ul>
+ * 	<li>{@value tut.pori.javadocer.HtmlRenderer#PROPERTY_HIGHLIGHT} - if true, XML and JSON content is syntax highlighted, default is false</li>
+ * 	<li>{@value tut.pori.javadocer.HtmlRenderer#PROPERTY_REQUEST_LINE} - if true, the request (HTTP method and uri, and the uri of the body content if any) is printed before the content, default is false</li>
+ * </ul>
+ * 
+ * The highlighted content is printed by formatting the content again using {@link XmlFormatter} or {@link JsonFormatter}, which wrap the markup in &lt;span&gt; elements directly from the parser events while printing.
+ * As formatting is idempotent, the text is the same as without highlighting. Content which is neither XML nor JSON, or cannot be parsed, is printed without highlighting.
+ * The classes of the elements are {@value tut.pori.javadocer.HtmlRenderer#CLASS_TAG}, {@value tut.pori.javadocer.HtmlRenderer#CLASS_ATTRIBUTE}, {@value tut.pori.javadocer.HtmlRenderer#CLASS_VALUE},
+ * {@value tut.pori.javadocer.HtmlRenderer#CLASS_TEXT}, {@value tut.pori.javadocer.HtmlRenderer#CLASS_COMMENT} and {@value tut.pori.javadocer.HtmlRenderer#CLASS_REQUEST}, and their style is defined in the stylesheet of the documentation, e.g.
+ * <pre>
+ * .restlet-tag { color: #881280; }
+ * .restlet-attribute { color: #994500; }
+ * .restlet-value { color: #1a1aa6; }
+ * .restlet-comment { color: #236e25; }
+ * .restlet-request { font-weight: bold; }
+ * </pre>
+ * 
+ * This class is thread-safe, the formatters are kept for each thread.
+ */
+public class HtmlRenderer {
+	/** class of the attribute names and the JSON member names */
+	public static final String CLASS_ATTRIBUTE = "restlet-attribute";
+	/** class of the comments, the processing instructions and the XML declaration */
+	public static final String CLASS_COMMENT = "restlet-comment";
+	/** class of the request line */
+	public static final String CLASS_REQUEST = "restlet-request";
+	/** class of the element tags */
+	public static final String CLASS_TAG = "restlet-tag";
+	/** class of the text content and the CDATA sections */
+	public static final String CLASS_TEXT = "restlet-text";
+	/** class of the attribute values and the JSON values */
+	public static final String CLASS_VALUE = "restlet-value";
+	/** System property name used to define whether the content is syntax highlighted, default is false */
+	public static final String PROPERTY_HIGHLIGHT = "tut.pori.javadocer.highlight";
+	/** System property name used to define whether the request line is printed before the content, default is false */
+	public static final String PROPERTY_REQUEST_LINE = "tut.pori.javadocer.request_line";
+	private static final String BODY_PREFIX = "Body: ";
+	private static final Logger LOGGER = Logger.getLogger(HtmlRenderer.class);
+	private boolean _highlight = false;
+	private ThreadLocal<JsonFormatter> _jsonFormatter = new ThreadLocal<JsonFormatter>(){ // the formatters are not thread-safe
+		@Override
+		protected JsonFormatter initialValue() {
+			return new JsonFormatter();
+		}
+	};
+	private String _lineSeparator = System.lineSeparator();
+	private boolean _requestLine = false;
+	private String _restUri = null;
+	private ThreadLocal<XmlFormatter> _xmlFormatter = new ThreadLocal<XmlFormatter>(){
+		@Override
+		protected XmlFormatter initialValue() {
+			return new XmlFormatter();
+		}
+	};
+
+	/**
+	 * 
+	 * @param highlight if true, the content is syntax highlighted
+	 * @param requestLine if true, the request line is printed before the content
+	 */
+	public HtmlRenderer(boolean highlight, boolean requestLine) {
+		_highlight = highlight;
+		_requestLine = requestLine;
+		_restUri = StringUtils.defaultString(System.getProperty(Javadocer.PROPERTY_REST_URI)); // not set when replaying a snapshot, the request line is then relative
+	}
+
+	/**
+	 * 
+	 * @return renderer configured using the system properties
+	 */
+	public static HtmlRenderer fromSystemProperties() {
+		return new HtmlRenderer(Boolean.parseBoolean(System.getProperty(PROPERTY_HIGHLIGHT)), Boolean.parseBoolean(System.getProperty(PROPERTY_REQUEST_LINE)));
+	}
+
+	/**
+	 * 
+	 * @param params the parameters of the tag, used for the request line
+	 * @param content the formatted content
+	 * @return the content as HTML
+	 */
+	public String render(JavadocerParameters params, String content) {
+		String requestLine = (_requestLine ? getRequestLine(params) : null);
+		if(_highlight){
+			HtmlEscapingWriter writer = new HtmlEscapingWriter(3*content.length()); // the spans roughly triple the length of markup-heavy content
+			try{
+				if(requestLine != null){
+					writer.startSpan(CLASS_REQUEST);
+					writer.write(requestLine, 0, requestLine.length());
+					writer.endSpan();
+				}
+				if(highlight(content, writer)){
+					writer.close();
+					return writer.toString();
+				}
+			} catch (XMLStreamException | ParseException | IOException ex) {
+				LOGGER.debug("Failed to highlight the content, printing it as-is.", ex);
+			}
+		}
+
+		if(requestLine == null){
+			return HtmlEscapingWriter.toPreformatted(content);
+		}
+		HtmlEscapingWriter writer = new HtmlEscapingWriter(HtmlEscapingWriter.getEscapedLength(requestLine)+HtmlEscapingWriter.getEscapedLength(content));
+		writer.write(requestLine, 0, requestLine.length());
+		writer.write(content, 0, content.length());
+		writer.close();
+		return writer.toString();
+	}
+
+	/**
+	 * 
+	 * @param content
+	 * @param writer
+	 * @return false if the content is neither XML nor JSON
+	 * @throws XMLStreamException
+	 * @throws ParseException
+	 * @throws IOException
+	 */
+	private boolean highlight(String content, HtmlEscapingWriter writer) throws XMLStreamException, ParseException, IOException {
+		int start = 0;
+		for(int length = content.length(); start < length && Character.isWhitespace(content.charAt(start)); ++start){
+			// skip
+		}
+		if(start == content.length()){
+			return false;
+		}
+		switch(content.charAt(start)){
+			case '<':
+				XmlFormatter formatter = _xmlFormatter.get();
+				XMLStreamReader reader = formatter.createReader(new StringReader(content));
+				try{
+					formatter.highlightDocument(reader, writer);
+				} finally {
+					reader.close();
+				}
+				return true;
+			case '{':
+			case '[':
+				_jsonFormatter.get().highlightDocument(new StringReader(content), writer);
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * 
+	 * @param params
+	 * @return the request line(s), ending with a line separator, or null if the parameters do not define a request
+	 */
+	private String getRequestLine(JavadocerParameters params) {
+		if(params == null || params.getType() == null){
+			return null;
+		}
+		StringBuilder line = new StringBuilder();
+		line.append(params.getType().name());
+		line.append(' ');
+		line.append(_restUri);
+		line.append(params.getService());
+		line.append('/');
+		line.append(params.getMethod());
+		if(!StringUtils.isBlank(params.getQuery())){
+			line.append('?');
+			line.append(params.getQuery());
+		}
+		line.append(_lineSeparator);
+		if(params.getType() == Javadocer.MethodType.POST && !StringUtils.isBlank(params.getBodyUri())){
+			line.append(BODY_PREFIX);
+			line.append(Javadocer.MethodType.GET.name());
+			line.append(' ');
+			line.append(_restUri);
+			line.append(params.getBodyUri());
+			line.append(_lineSeparator);
+		}
+		return line.toString();
+	}
+}
@@ -15,51 +15,93 @@
  */
 package tut.pori.javadocer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
+import org.apache.http.client.entity.DeflateInputStream;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 /**
  * Javadocer class.
  * 
- * Creates pretty printed XML responses from external sources (REST). Use {@link JavadocerParameters} and {@link Javadocer#retrieveContent(JavadocerParameters)}. 
+ * Creates pretty printed XML and JSON responses from external sources (REST). Use {@link JavadocerParameters} and {@link Javadocer#retrieveContent(JavadocerParameters)}. 
  * Javadocer expects to have property {@value tut.pori.javadocer.Javadocer#PROPERTY_REST_URI} to be set.
  * 
  * This implementation expects the following attributes:
  * <ul>
  * 	<li>body_uri - the uri where to retrieve HTTP Body content for the request. The request is always assumed to be GET and the uri should contain all required parameters. The uri is relative to the configured rest_uri. The value can be left empty or the attribute can be omitted if no body content is required.</li>
+ * 	<li>max_children - optional, the maximum number of child elements printed for each element of the content</li>
+ * 	<li>max_depth - optional, the maximum depth of the printed elements of the content</li>
  * 	<li>method - the REST method name</li>
  * 	<li>query - query uri without the ? prefix. The value can be left empty or the attribute omitted if no additional query parameters are required</li>
  * 	<li>service - the REST service name</li>
@@ -68,8 +110,10 @@ import org.xml.sax.SAXException;
  * 
  * The retrieved body content has a few limitations/features, namely:
  * <ul>
- * 	<li>The content must be valid XML</li>
+ * 	<li>The content must be valid XML, or valid JSON if the response has content type application/json (or any other type with the suffix +json)</li>
  * 	<li>If the retrieved content has element named &lt;example&gt; directly below the root element, the content will be stripped to contain only the content inside the &lt;example&gt; element. E.g. new XML document will be created with the first child of &lt;example&gt; element as the root element.</li>
+ * 	<li>If the retrieved JSON content is an object with the member "example", the content will be stripped to contain only the value of the member.</li>
+ * 	<li>The body content retrieved from body_uri is sent with content type application/json if it is JSON, and text/xml otherwise.</li>
  * </ul>
  * 
  * Example with a configured REST uri http://example.org/rest/ : <br/>
@@ -83,18 +127,81 @@ import org.xml.sax.SAXException;
  *  <li>The XML content is then returned as a pretty printed string</li>
  * </ul>
  * 
+ * The taglets should use the shared engine returned by {@link #getInstance()}, which keeps the HTTP connections and the XML tooling alive for the whole javadoc run.
+ * The shared engine is closed automatically when the JVM exits.
+ * 
+ * This class is thread-safe: a single instance can be shared by any number of threads calling {@link #retrieveContent(JavadocerParameters)} and {@link #retrieveContentAsync(JavadocerParameters)} concurrently.
+ * The responses are parsed and formatted by the calling thread while they are read, using a {@link XmlFormatter} (and its XML input factory) or a {@link JsonFormatter} kept for each thread, so the formatting of large responses scales with the number of threads.
+ * The number of concurrent requests is limited by the size of the connection pool, configured by the property {@value tut.pori.javadocer.RequestPolicy#PROPERTY_MAX_CONNECTIONS}, and the threads exceeding it wait for a free connection.
+ * The asynchronous requests are executed by a pool of threads, one for each pooled connection. On Java 21 or later, the threads are virtual threads, see {@link VirtualThreads}.
+ * 
+ * The timeouts, retries and hedging of the requests are configured by system properties, see {@link RequestPolicy}.
+ * 
+ * The responses larger than the size given by the property {@value tut.pori.javadocer.RequestPolicy#PROPERTY_MAX_RESPONSE_SIZE} are rejected while they are read. The content preceding the example is buffered (in case there is no example),
+ * and the part of it exceeding the size given by the property {@value tut.pori.javadocer.RequestPolicy#PROPERTY_SPILL_THRESHOLD} is buffered in a temporary file. The printed content can be truncated by the attributes max_children and max_depth,
+ * the omitted elements are read through without keeping them in memory, see {@link XmlFormatter}. JSON content is not truncated.
+ * 
+ * Gzip and deflate encoded responses are accepted, unless disabled by the property {@value tut.pori.javadocer.RequestPolicy#PROPERTY_COMPRESSION}. The responses are decoded while they are parsed, and both the transferred and the decoded bytes are counted.
+ * The POST body content is gzip encoded if it exceeds the size given by the property {@value tut.pori.javadocer.RequestPolicy#PROPERTY_BODY_COMPRESSION_THRESHOLD}.
+ * 
+ * The responses can be cached on disk by setting the property {@value tut.pori.javadocer.ResponseCache#PROPERTY_CACHE_DIR}, see {@link ResponseCache}.
+ * The cached content is revalidated with the server using the ETag and Last-Modified headers, and on a hit the stored pretty printed content is returned as-is.
+ * 
+ * The exchanges can be recorded to a snapshot archive and replayed later without access to the REST server by setting the property {@value tut.pori.javadocer.SnapshotArchive#PROPERTY_SNAPSHOT_MODE}, see {@link SnapshotArchive}.
+ * The REST base URI is not required when replaying.
+ * 
+ * The phases, byte counts and outcomes of the synchronous requests are added to the sample of the calling thread, see {@link RunStatistics}.
  */
 public class Javadocer implements Closeable {
 	/** System property name used to define the REST base URI */
 	public static final String PROPERTY_REST_URI = "tut.pori.javadocer.rest_uri";
 	private static final Logger LOGGER = Logger.getLogger(Javadocer.class);
-	private static final String CHARSET = "UTF-8";
+	private static final int BUFFER_SIZE = 8192;
+	private static final char BYTE_ORDER_MARK = '\uFEFF';
+	private static final String ENCODING_DEFLATE = "deflate";
+	private static final String ENCODING_GZIP = "gzip";
+	private static final String ENCODING_IDENTITY = "identity";
+	private static final String ENCODING_X_GZIP = "x-gzip";
+	private static final long DRAIN_LIMIT = 65536; // in bytes, the maximum amount of unused content read to keep the connection alive
 	private static final String ELEMENT_EXAMPLE = "example";
+	private static final String KEY_PREFIX_BODY = "BODY "; // the body content requires an example, so it is not coalesced with a GET request to the same uri
+	private static final long KEEP_ALIVE_DEFAULT = 30000; // in ms, used if the server does not give keep-alive timeout
+	private static final int SC_TOO_MANY_REQUESTS = 429; // not defined in HttpStatus
+	private static final String SUFFIX_JSON = "+json"; // structured syntax suffix of the JSON based media types
+	private static Javadocer _instance = null;
+	private ResponseCache _cache = null;
+	private AtomicLong _bytesDecoded = new AtomicLong();
+	private AtomicLong _bytesTransferred = new AtomicLong();
+	private AtomicLong _cacheHits = new AtomicLong();
+	private AtomicLong _cacheMisses = new AtomicLong();
+	private AtomicLong _cacheRevalidated = new AtomicLong();
 	private CloseableHttpClient _client = null;
-	private DocumentBuilder _documentBuilder = null;
+	private RequestCoalescer _coalescer = null;
+	private AtomicLong _connectionsOpened = new AtomicLong();
+	private ConcurrentMap<String, SnapshotArchive.Exchange> _exchanges = new ConcurrentHashMap<>(); // request key - exchange, record mode only
+	private ExecutorService _executor = null; // created on the first asynchronous request
+	private AtomicLong _hedged = new AtomicLong();
+	private ExecutorService _hedgeExecutor = null; // created on the first hedged request
+	private AtomicLong _hedgeWins = new AtomicLong();
+	private ThreadLocal<XmlFormatter> _formatter = new ThreadLocal<XmlFormatter>(){ // the formatters are not thread-safe, the requests are formatted by the calling threads concurrently
+		@Override
+		protected XmlFormatter initialValue() {
+			return new XmlFormatter();
+		}
+	};
+	private ThreadLocal<JsonFormatter> _jsonFormatter = new ThreadLocal<JsonFormatter>(){
+		@Override
+		protected JsonFormatter initialValue() {
+			return new JsonFormatter();
+		}
+	};
+	private boolean _ownsCoalescer = false;
+	private boolean _ownsSnapshot = false;
+	private RequestPolicy _policy = null;
+	private AtomicLong _requestCount = new AtomicLong();
 	private String _restUri = null;
-	private Transformer _transformer = null;
-	private XPath _xPath = null;
+	private AtomicLong _retries = new AtomicLong();
+	private SnapshotArchive _snapshot = null;
 
 	/**
 	 * the type of the HTTP method call
@@ -140,31 +247,178 @@ public class Javadocer implements Closeable {
 	} // enum MethodType
 
 	/**
+	 * Thrown when the server responds with an error status
+	 *
+	 */
+	public static class StatusException extends IllegalArgumentException {
+		private static final long serialVersionUID = 1L;
+		private int _statusCode = 0;
+
+		/**
+		 * 
+		 * @param statusCode
+		 * @param message
+		 */
+		public StatusException(int statusCode, String message) {
+			super(message);
+			_statusCode = statusCode;
+		}
+
+		/**
+		 * @return the HTTP status code
+		 */
+		public int getStatusCode() {
+			return _statusCode;
+		}
+	} // class StatusException
+
+	/**
+	 * The outcome of a single request of {@link Javadocer#retrieveAll(Collection, int, int)}
+	 *
+	 */
+	public static class Result {
+		private String _content = null;
+		private Throwable _error = null;
+		private long _latency = 0;
+
+		/**
+		 * 
+		 * @param content
+		 * @param error
+		 * @param latency
+		 */
+		private Result(String content, Throwable error, long latency) {
+			_content = content;
+			_error = error;
+			_latency = latency;
+		}
+
+		/**
+		 * @return the retrieved content or null on failure
+		 */
+		public String getContent() {
+			return _content;
+		}
+
+		/**
+		 * @return the cause of the failure or null on success, generally {@link IllegalArgumentException}, or {@link StatusException} if the server responded with an error status
+		 */
+		public Throwable getError() {
+			return _error;
+		}
+
+		/**
+		 * @return the time from sending the request to receiving the formatted content in ms
+		 */
+		public long getLatency() {
+			return _latency;
+		}
+
+		/**
+		 * @return true if the content was retrieved successfully
+		 */
+		public boolean isSuccessful() {
+			return (_error == null);
+		}
+	} // class Result
+
+	/**
+	 * Creates a new instance using the response cache and the snapshot archive configured by the system properties, if any.
 	 * 
 	 * @throws IllegalArgumentException
 	 */
 	public Javadocer() throws IllegalArgumentException{
+		this(ResponseCache.fromSystemProperties(), null, SnapshotArchive.fromSystemProperties());
+		_ownsSnapshot = (_snapshot != null);
+	}
+
+	/**
+	 * 
+	 * @param cache the response cache to use, or null to disable caching. The same cache can be shared by multiple instances.
+	 * @param coalescer the coalescer used to share the results of identical requests, or null to create a new coalescer for this instance. The same coalescer can be shared by multiple instances.
+	 * @throws IllegalArgumentException
+	 */
+	public Javadocer(ResponseCache cache, RequestCoalescer coalescer) throws IllegalArgumentException{
+		this(cache, coalescer, null);
+	}
+
+	/**
+	 * 
+	 * @param cache the response cache to use, or null to disable caching. The same cache can be shared by multiple instances.
+	 * @param coalescer the coalescer used to share the results of identical requests, or null to create a new coalescer for this instance. The same coalescer can be shared by multiple instances.
+	 * @param snapshot the archive the exchanges are recorded to or replayed from, or null to disable snapshots. The same archive can be shared by multiple instances, the archive is not closed by this instance.
+	 * @throws IllegalArgumentException
+	 */
+	public Javadocer(ResponseCache cache, RequestCoalescer coalescer, SnapshotArchive snapshot) throws IllegalArgumentException{
+		_snapshot = snapshot;
 		_restUri = System.getProperty(PROPERTY_REST_URI);
-		if(StringUtils.isBlank(_restUri)){
+		if(StringUtils.isBlank(_restUri) && !isReplaying()){
 			throw new IllegalArgumentException("Bad "+PROPERTY_REST_URI);
 		}
 
-		try {
-			_documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-			_transformer = TransformerFactory.newInstance().newTransformer();
-			_transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-			_transformer.setOutputProperty(OutputKeys.STANDALONE, "yes"); // because of an issue with java's transformer indent, we need to add standalone attribute 
-			_transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-			_transformer.setOutputProperty(OutputKeys.ENCODING, CHARSET);
-			_transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-			_transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-		} catch (ParserConfigurationException | TransformerConfigurationException | TransformerFactoryConfigurationError ex) {
-			LOGGER.error(ex, ex);
-			throw new IllegalArgumentException("Failed to create document builder/transformer instance.");
+		_policy = RequestPolicy.fromSystemProperties();
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(new CountingConnectionFactory());
+		connectionManager.setMaxTotal(_policy.getMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(_policy.getMaxConnections()); // generally, all requests go to the same host
+		_client = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setKeepAliveStrategy(new KeepAliveStrategy())
+				.setDefaultRequestConfig(_policy.createRequestConfig())
+				.disableAutomaticRetries() // retried by the request policy
+				.disableContentCompression() // decoded by this class, so that the transferred bytes can be counted
+				.build();
+
+		_cache = cache;
+		if(coalescer == null){
+			_coalescer = new RequestCoalescer();
+			_ownsCoalescer = true;
+		}else{
+			_coalescer = coalescer;
 		}
+	}
+
+	/**
+	 * Returns the engine shared by the whole process. The instance is created on the first call and closed automatically on JVM shutdown. Do not close the returned instance manually.
+	 * 
+	 * @return the shared Javadocer instance
+	 * @throws IllegalArgumentException on failure to create the instance
+	 */
+	public static synchronized Javadocer getInstance() throws IllegalArgumentException {
+		if(_instance == null){
+			final Javadocer javadocer = new Javadocer();
+			Runtime.getRuntime().addShutdownHook(new Thread("javadocer-shutdown"){
+				@Override
+				public void run() {
+					javadocer.close();
+				}
+			});
+			_instance = javadocer;
+		}
+		return _instance;
+	}
+
+	/**
+	 * 
+	 * @return the number of HTTP requests executed by this instance
+	 */
+	public long getRequestCount() {
+		return _requestCount.get();
+	}
+
+	/**
+	 * 
+	 * @return the number of new HTTP connections opened by this instance
+	 */
+	public long getConnectionsOpened() {
+		return _connectionsOpened.get();
+	}
 
-		_xPath = XPathFactory.newInstance().newXPath();
-		_client = HttpClients.createDefault();
+	/**
+	 * 
+	 * @return the number of HTTP requests which were executed using an already open (kept-alive) connection
+	 */
+	public long getConnectionsReused() {
+		return Math.max(0, _requestCount.get() - _connectionsOpened.get());
 	}
 
 	/**
@@ -192,167 +446,1100 @@ public class Javadocer implements Closeable {
 	}
 
 	/**
+	 * Identical requests are executed only once, see {@link RequestCoalescer}.
 	 * 
 	 * @param params 
 	 * @return content from the path described by the given parameters
 	 * @throws IllegalArgumentException
 	 */
 	public String retrieveContent(JavadocerParameters params) throws IllegalArgumentException {
-		MethodType type = params.getType();
+		final MethodType type = params.getType();
 		if(type == null){
 			throw new IllegalArgumentException("Type is missing.");
 		}
-		String uri = createUri(params.getService(), params.getMethod(), params.getQuery());
-		HttpRequestBase request = null;
+		final String key = params.toString();
+		if(isReplaying()){
+			return replay(key);
+		}
+		final String uri = createUri(params.getService(), params.getMethod(), params.getQuery());
+		final String bodyUri = (type == MethodType.POST && !StringUtils.isBlank(params.getBodyUri()) ? _restUri+params.getBodyUri() : null);
+		final int maxChildren = params.getMaxChildren();
+		final int maxDepth = params.getMaxDepth();
+		final String requestKey = type.name()+" "+uri+(bodyUri == null ? "" : " "+bodyUri)+getTruncation(maxChildren, maxDepth);
+		String content = _coalescer.execute(requestKey, new Callable<String>() {
+			@Override
+			public String call() throws IllegalArgumentException {
+				return retrieveContent(requestKey, type, uri, bodyUri, maxChildren, maxDepth);
+			}
+		});
+		record(key, requestKey);
+		return content;
+	}
+
+	/**
+	 * Asynchronous version of {@link #retrieveContent(JavadocerParameters)}.
+	 * 
+	 * The retrieval of the body content and the request itself (including the formatting of the response, which is done while reading the response) are executed as separate stages by the request threads of this instance.
+	 * Identical requests are executed only once, see {@link RequestCoalescer}.
+	 * 
+	 * @param params
+	 * @return future content from the path described by the given parameters, on failure the future completes with {@link IllegalArgumentException}
+	 */
+	public CompletableFuture<String> retrieveContentAsync(JavadocerParameters params) {
+		final MethodType type = params.getType();
+		final String key = params.toString();
+		final String uri;
+		final String bodyUri;
+		try{
+			if(type == null){
+				throw new IllegalArgumentException("Type is missing.");
+			}
+			if(isReplaying()){
+				return CompletableFuture.completedFuture(replay(key));
+			}
+			uri = createUri(params.getService(), params.getMethod(), params.getQuery());
+			bodyUri = (type == MethodType.POST && !StringUtils.isBlank(params.getBodyUri()) ? _restUri+params.getBodyUri() : null);
+		} catch (IllegalArgumentException ex) {
+			CompletableFuture<String> failed = new CompletableFuture<>();
+			failed.completeExceptionally(ex);
+			return failed;
+		}
+		final int maxChildren = params.getMaxChildren();
+		final int maxDepth = params.getMaxDepth();
+		final String requestKey = type.name()+" "+uri+(bodyUri == null ? "" : " "+bodyUri)+getTruncation(maxChildren, maxDepth);
+		return _coalescer.executeAsync(requestKey, new Callable<CompletableFuture<String>>() {
+			@Override
+			public CompletableFuture<String> call() {
+				return retrieveContentAsync(requestKey, type, uri, bodyUri, maxChildren, maxDepth);
+			}
+		}).thenApply(new Function<String, String>() {
+			@Override
+			public String apply(String content) {
+				record(key, requestKey);
+				return content;
+			}
+		});
+	}
+
+	/**
+	 * Retrieves the content for all the given parameters, using the size of the connection pool as the limits.
+	 * 
+	 * @param params
+	 * @return the outcome of each request in the given order
+	 * @throws InterruptedException
+	 * @see #retrieveAll(Collection, int, int)
+	 */
+	public Map<JavadocerParameters, Result> retrieveAll(Collection<JavadocerParameters> params) throws InterruptedException {
+		return retrieveAll(params, _policy.getMaxConnections(), _policy.getMaxConnections());
+	}
+
+	/**
+	 * Retrieves the content for all the given parameters with {@link #retrieveContentAsync(JavadocerParameters)}.
+	 * 
+	 * The requests to a single host are limited by {@link AdaptiveLimiter}, which adapts the number of concurrent requests to the latency of the responses, and to the HTTP 429 (Too Many Requests) and 503 (Service Unavailable) responses.
+	 * Note that the requests are started in the given order, so a host at its limit also delays the requests to the other hosts.
+	 * 
+	 * @param params
+	 * @param maxConcurrency the maximum number of requests in flight, in practice, the requests are executed at most by as many threads as there are pooled connections
+	 * @param maxPerHost the maximum number of requests in flight to a single host
+	 * @return the outcome of each request in the given order, a failed request does not affect the other requests
+	 * @throws IllegalArgumentException on invalid limits
+	 * @throws InterruptedException
+	 */
+	public Map<JavadocerParameters, Result> retrieveAll(Collection<JavadocerParameters> params, int maxConcurrency, int maxPerHost) throws IllegalArgumentException, InterruptedException {
+		if(maxConcurrency < 1){
+			throw new IllegalArgumentException("Invalid concurrency: "+maxConcurrency);
+		}
+		final Semaphore permits = new Semaphore(maxConcurrency);
+		Map<String, AdaptiveLimiter> limiters = new HashMap<>();
+		Map<JavadocerParameters, CompletableFuture<Result>> pending = new LinkedHashMap<>(params.size()*2);
+		for(JavadocerParameters p : params){
+			if(pending.containsKey(p)){
+				continue;
+			}
+			String host = null;
+			try{
+				if(p.getType() == null){
+					throw new IllegalArgumentException("Type is missing.");
+				}
+				host = getHost(createUri(p.getService(), p.getMethod(), p.getQuery()));
+			} catch (IllegalArgumentException ex) {
+				pending.put(p, CompletableFuture.completedFuture(new Result(null, ex, 0)));
+				continue;
+			}
+			AdaptiveLimiter hostLimiter = limiters.get(host);
+			if(hostLimiter == null){
+				hostLimiter = new AdaptiveLimiter(host, maxPerHost);
+				limiters.put(host, hostLimiter);
+			}
+			final AdaptiveLimiter limiter = hostLimiter;
+			limiter.acquire();
+			try{
+				permits.acquire();
+			} catch (InterruptedException ex) {
+				limiter.release(0, false);
+				throw ex;
+			}
+			final long started = System.nanoTime();
+			pending.put(p, retrieveContentAsync(p).handle(new BiFunction<String, Throwable, Result>() {
+				@Override
+				public Result apply(String content, Throwable ex) {
+					long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-started);
+					permits.release();
+					Throwable cause = ((ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex);
+					int statusCode = (cause instanceof StatusException ? ((StatusException) cause).getStatusCode() : 0);
+					limiter.release(latency, (statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE || statusCode == SC_TOO_MANY_REQUESTS));
+					return new Result(content, cause, latency);
+				}
+			}));
+		}
+
+		Map<JavadocerParameters, Result> results = new LinkedHashMap<>(pending.size()*2);
+		int failed = 0;
+		for(Map.Entry<JavadocerParameters, CompletableFuture<Result>> e : pending.entrySet()){
+			Result result = null;
+			try {
+				result = e.getValue().get();
+			} catch (ExecutionException ex) { // should not happen, the outcome is always given
+				LOGGER.error(ex, ex);
+				result = new Result(null, ex.getCause(), 0);
+			}
+			if(!result.isSuccessful()){
+				++failed;
+			}
+			results.put(e.getKey(), result);
+		}
+		StringBuilder limits = new StringBuilder();
+		for(AdaptiveLimiter limiter : limiters.values()){
+			limits.append(' ');
+			limits.append(limiter.toString());
+		}
+		LOGGER.info("Retrieved "+(results.size()-failed)+" of "+results.size()+" requests, failed: "+failed+", final limits:"+limits.toString());
+		return results;
+	}
+
+	/**
+	 * 
+	 * @param uri
+	 * @return the scheme, host and port of the given uri
+	 */
+	private static String getHost(String uri) {
+		int start = uri.indexOf("://");
+		start = (start < 0 ? 0 : start+3);
+		int end = uri.indexOf('/', start);
+		return (end < 0 ? uri : uri.substring(0, end));
+	}
+
+	/**
+	 * 
+	 * @return true if the content is replayed from the snapshot archive
+	 */
+	private boolean isReplaying() {
+		return (_snapshot != null && _snapshot.getMode() == SnapshotArchive.Mode.REPLAY);
+	}
+
+	/**
+	 * 
+	 * @param key the normalized parameters
+	 * @return the recorded content
+	 * @throws IllegalArgumentException if the content was not recorded
+	 */
+	private String replay(String key) throws IllegalArgumentException {
+		SnapshotArchive.Exchange exchange = _snapshot.replay(key);
+		if(exchange == null){
+			throw new IllegalArgumentException("Not found in the snapshot: "+key);
+		}
+		RunStatistics.addOutcome(RunStatistics.Outcome.REPLAYED);
+		return exchange.getContent();
+	}
+
+	/**
+	 * 
+	 * @return true if the exchanges are recorded to the snapshot archive
+	 */
+	private boolean isRecording() {
+		return (_snapshot != null && _snapshot.getMode() == SnapshotArchive.Mode.RECORD);
+	}
+
+	/**
+	 * Keeps the exchange for recording if the snapshot archive is in record mode
+	 * 
+	 * @param requestKey the key of the coalesced request
+	 * @param type
+	 * @param uri
+	 * @param bodyUri
+	 * @param body
+	 * @param content
+	 */
+	private void record(String requestKey, MethodType type, String uri, String bodyUri, String body, String content) {
+		if(isRecording()){
+			_exchanges.put(requestKey, new SnapshotArchive.Exchange(type.name(), uri, bodyUri, body, content));
+		}
+	}
+
+	/**
+	 * Records the exchange of the coalesced request under the normalized parameters of the caller, if the snapshot archive is in record mode.
+	 * 
+	 * The parameters of the callers sharing a request may be normalized differently, e.g. a GET request with an ignored body_uri, so each caller records the exchange under its own key.
+	 * 
+	 * @param key the normalized parameters
+	 * @param requestKey the key of the coalesced request
+	 */
+	private void record(String key, String requestKey) {
+		if(isRecording()){
+			SnapshotArchive.Exchange exchange = _exchanges.get(requestKey);
+			if(exchange != null){
+				_snapshot.record(key, exchange);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param maxChildren
+	 * @param maxDepth
+	 * @return suffix identifying the truncation of the content in the request keys, empty if the content is not truncated
+	 */
+	private static String getTruncation(int maxChildren, int maxDepth) {
+		return (maxChildren == XmlFormatter.NO_LIMIT && maxDepth == XmlFormatter.NO_LIMIT ? "" : " max_children="+maxChildren+" max_depth="+maxDepth);
+	}
+
+	/**
+	 * 
+	 * @param requestKey the key of the coalesced request, used for recording the snapshot
+	 * @param type
+	 * @param uri
+	 * @param bodyUri the full uri of the body content or null if none
+	 * @param maxChildren the maximum number of child elements printed for each element
+	 * @param maxDepth the maximum depth of the printed elements
+	 * @return future content from the given uri
+	 */
+	private CompletableFuture<String> retrieveContentAsync(final String requestKey, final MethodType type, final String uri, final String bodyUri, final int maxChildren, final int maxDepth) {
+		final ExecutorService executor = getExecutor();
+		CompletableFuture<String> body = null;
+		if(bodyUri == null){
+			body = CompletableFuture.completedFuture(null);
+		}else{
+			body = _coalescer.executeAsync(KEY_PREFIX_BODY+bodyUri, new Callable<CompletableFuture<String>>() {
+				@Override
+				public CompletableFuture<String> call() {
+					return CompletableFuture.supplyAsync(new Supplier<String>() {
+						@Override
+						public String get() {
+							LOGGER.debug("Retrieving body from url: "+bodyUri);
+							return retrieveContent(new HttpGet(bodyUri), MethodType.GET, null, true, XmlFormatter.NO_LIMIT, XmlFormatter.NO_LIMIT); // the body is never truncated
+						}
+					}, executor);
+				}
+			});
+		}
+		return body.thenApplyAsync(new Function<String, String>() {
+			@Override
+			public String apply(String body) {
+				LOGGER.debug("Calling url: "+uri);
+				String content = retrieveContent(createRequest(type, uri, body), type, body, false, maxChildren, maxDepth);
+				record(requestKey, type, uri, bodyUri, body, content);
+				return content;
+			}
+		}, executor);
+	}
+
+	/**
+	 * 
+	 * @param requestKey the key of the coalesced request, used for recording the snapshot
+	 * @param type
+	 * @param uri
+	 * @param bodyUri the full uri of the body content or null if none
+	 * @param maxChildren the maximum number of child elements printed for each element
+	 * @param maxDepth the maximum depth of the printed elements
+	 * @return content from the given uri
+	 * @throws IllegalArgumentException
+	 */
+	private String retrieveContent(String requestKey, MethodType type, String uri, final String bodyUri, int maxChildren, int maxDepth) throws IllegalArgumentException {
+		String body = null;
+		if(bodyUri != null){
+			long started = System.nanoTime();
+			RunStatistics.Sample sample = RunStatistics.suspend(); // the body request is measured as a whole
+			try{
+				body = _coalescer.execute(KEY_PREFIX_BODY+bodyUri, new Callable<String>() {
+					@Override
+					public String call() throws IllegalArgumentException {
+						LOGGER.debug("Retrieving body from url: "+bodyUri);
+						return retrieveContent(new HttpGet(bodyUri), MethodType.GET, null, true, XmlFormatter.NO_LIMIT, XmlFormatter.NO_LIMIT); // the body is never truncated
+					}
+				});
+			} finally {
+				RunStatistics.resume(sample, RunStatistics.Phase.BODY, started);
+			}
+		}
+
+		LOGGER.debug("Calling url: "+uri);
+		String content = retrieveContent(createRequest(type, uri, body), type, body, false, maxChildren, maxDepth);
+		record(requestKey, type, uri, bodyUri, body, content);
+		return content;
+	}
+
+	/**
+	 * 
+	 * @param type
+	 * @param uri
+	 * @param body the body content or null if none, only used with POST
+	 * @return new request
+	 * @throws IllegalArgumentException
+	 */
+	private HttpRequestBase createRequest(MethodType type, String uri, String body) throws IllegalArgumentException {
 		switch(type){
 			case DELETE:
-				request = new HttpDelete(uri);
-				break;
+				return new HttpDelete(uri);
 			case GET:
-				request = new HttpGet(uri);
-				break;
+				return new HttpGet(uri);
 			case POST:
 				HttpPost post = new HttpPost(uri);
-				if(!StringUtils.isBlank(params.getBodyUri())){
-					String bodyUri = _restUri+params.getBodyUri();
-					LOGGER.debug("Retrieving body from url: "+bodyUri);
-					try(CloseableHttpResponse response = _client.execute(new HttpGet(bodyUri))){
-						StatusLine statusLine = response.getStatusLine();
-						int statusCode = statusLine.getStatusCode();
-						if(statusCode < 200 || statusCode >= 300){
-							throw new IllegalArgumentException("Server responded: "+statusCode+" "+statusLine.getReasonPhrase());
-						}
-						try {
-							Node node = getExampleContent(_documentBuilder.parse(response.getEntity().getContent()));
-							if(node == null){
-								throw new IllegalArgumentException("No example returned by url: "+bodyUri);
-							}
-							post.setEntity(new StringEntity(toString(node), ContentType.TEXT_XML));
-						} catch (IllegalStateException | SAXException ex) {
-							LOGGER.error(ex, ex);
-							throw new IllegalArgumentException("Failed to parse the response from url: "+bodyUri);
-						}
-					} catch (IOException ex) {
-						LOGGER.error(ex, ex);
-						throw new IllegalArgumentException("Failed to retrieve body content from url: "+bodyUri);
-					}
-				} // if body
-				request = post;
-				break;
+				if(body != null){
+					post.setEntity(createEntity(body));
+				}
+				return post;
 			default:
-				throw new IllegalArgumentException("Unknown type: "+params.getType());
+				throw new IllegalArgumentException("Unknown type: "+type);
 		}
+	}
 
-		LOGGER.debug("Calling url: "+uri);
-		try(CloseableHttpResponse response = _client.execute(request)){
+	/**
+	 * 
+	 * @param body
+	 * @return the entity for the given body content, gzip encoded if the content exceeds the threshold of the request policy
+	 * @throws IllegalArgumentException
+	 */
+	private HttpEntity createEntity(String body) throws IllegalArgumentException {
+		ContentType contentType = (isXml(body) ? ContentType.TEXT_XML : ContentType.APPLICATION_JSON);
+		int threshold = _policy.getBodyCompressionThreshold();
+		if(threshold < 0 || body.length() < threshold){ // the length in characters is a good enough estimate
+			return new StringEntity(body, contentType);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length()/4);
+		try(GZIPOutputStream out = new GZIPOutputStream(bytes, BUFFER_SIZE)){
+			out.write(body.getBytes(contentType.getCharset())); // the same encoding as with the uncompressed content
+		} catch (IOException ex) { // should not happen with in-memory streams
+			LOGGER.error(ex, ex);
+			throw new IllegalArgumentException("Failed to compress the body content.");
+		}
+		ByteArrayEntity entity = new ByteArrayEntity(bytes.toByteArray(), contentType);
+		entity.setContentEncoding(ENCODING_GZIP);
+		LOGGER.debug("Compressed body content from "+body.length()+" to "+bytes.size()+" bytes.");
+		return entity;
+	}
+
+	/**
+	 * The body is content formatted by this class, so XML starts with the declaration or the root element, and any other content is JSON, including the scalar values.
+	 * 
+	 * @param body
+	 * @return true if the given body content is XML or blank
+	 */
+	private static boolean isXml(String body) {
+		for(int i = 0, length = body.length(); i < length; ++i){
+			char c = body.charAt(i);
+			if(c != BYTE_ORDER_MARK && !Character.isWhitespace(c)){
+				return (c == '<');
+			}
+		}
+		return true; // blank content, should not happen
+	}
+
+	/**
+	 * 
+	 * @param in the content as transferred
+	 * @param encoding the value of the Content-Encoding header or null if none
+	 * @return the decoded content
+	 * @throws IOException
+	 * @throws IllegalArgumentException on unsupported encoding
+	 */
+	private static InputStream decode(InputStream in, Header encoding) throws IOException, IllegalArgumentException {
+		String value = (encoding == null ? null : StringUtils.trimToNull(encoding.getValue()));
+		if(value == null || ENCODING_IDENTITY.equalsIgnoreCase(value)){
+			return in;
+		}else if(ENCODING_GZIP.equalsIgnoreCase(value) || ENCODING_X_GZIP.equalsIgnoreCase(value)){
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		}else if(ENCODING_DEFLATE.equalsIgnoreCase(value)){
+			return new DeflateInputStream(in); // zlib or raw deflate
+		}else{
+			throw new IllegalArgumentException("Unsupported content encoding: "+value);
+		}
+	}
+
+	/**
+	 * 
+	 * @return the executor for the hedged requests
+	 */
+	private synchronized ExecutorService getHedgeExecutor() {
+		if(_hedgeExecutor == null){
+			_hedgeExecutor = Executors.newCachedThreadPool(VirtualThreads.getFactory("javadocer-hedge-", new ThreadFactory() {
+				private AtomicInteger _count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "javadocer-hedge-"+_count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			}));
+		}
+		return _hedgeExecutor;
+	}
+
+	/**
+	 * 
+	 * @return the executor for the asynchronous requests
+	 */
+	private synchronized ExecutorService getExecutor() {
+		if(_executor == null){
+			_executor = Executors.newFixedThreadPool(_policy.getMaxConnections(), VirtualThreads.getFactory("javadocer-request-", new ThreadFactory() { // the pool size limits the waiting for the pooled connections
+				private AtomicInteger _count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "javadocer-request-"+_count.incrementAndGet());
+					thread.setDaemon(true); // pending requests should not prevent the JVM from exiting
+					return thread;
+				}
+			}));
+		}
+		return _executor;
+	}
+
+	/**
+	 * Executes the request, or returns the content from the response cache if the cached content is fresh or the server responds that the content has not been modified.
+	 * 
+	 * @param request
+	 * @param type
+	 * @param body the request body or null if none
+	 * @param exampleRequired if true, the response must contain example content
+	 * @param maxChildren the maximum number of child elements printed for each element
+	 * @param maxDepth the maximum depth of the printed elements
+	 * @return the pretty printed content of the response
+	 * @throws IllegalArgumentException
+	 */
+	private String retrieveContent(HttpRequestBase request, MethodType type, String body, boolean exampleRequired, int maxChildren, int maxDepth) throws IllegalArgumentException {
+		String uri = request.getURI().toString();
+		String key = null;
+		ResponseCache.Entry entry = null;
+		if(_cache != null){
+			key = ResponseCache.createKey(type, uri+getTruncation(maxChildren, maxDepth), body); // the truncated content is cached separately
+			entry = _cache.get(key);
+			if(entry != null){
+				if(_cache.isFresh(entry)){
+					LOGGER.debug("Using cached content for url: "+uri);
+					_cacheHits.incrementAndGet();
+					RunStatistics.addOutcome(RunStatistics.Outcome.CACHE_HIT);
+					return entry.getContent();
+				}
+				if(entry.getETag() != null){
+					request.setHeader(HttpHeaders.IF_NONE_MATCH, entry.getETag());
+				}
+				if(entry.getLastModified() != null){
+					request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, entry.getLastModified());
+				}
+			}
+		}
+
+		boolean idempotent = (type != MethodType.POST);
+		for(int retry = 0;; ++retry){
+			try {
+				return retrieveContent(request, type, key, entry, exampleRequired, maxChildren, maxDepth);
+			} catch (StatusException ex) {
+				if(!idempotent || retry >= _policy.getMaxRetries() || !RequestPolicy.isRetryable(ex.getStatusCode())){
+					throw ex;
+				}
+				LOGGER.warn(ex.getMessage()+", retrying url: "+uri);
+			} catch (IllegalStateException | XMLStreamException | ParseException | IOException ex) {
+				if(!idempotent || retry >= _policy.getMaxRetries() || !isTransient(ex)){
+					LOGGER.error(ex, ex);
+					throw new IllegalArgumentException("Failed to parse response from url: "+uri);
+				}
+				LOGGER.warn(ex.toString()+", retrying url: "+uri);
+			}
+			_retries.incrementAndGet();
+			RunStatistics.addOutcome(RunStatistics.Outcome.RETRIED);
+			try {
+				Thread.sleep(_policy.getRetryDelay(retry));
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IllegalArgumentException("Interrupted while retrying url: "+uri);
+			}
+			request.reset();
+		}
+	}
+
+	/**
+	 * Executes the request once
+	 * 
+	 * @param request
+	 * @param type
+	 * @param key the cache key or null if caching is disabled
+	 * @param entry the cached entry or null if none
+	 * @param exampleRequired if true, the response must contain example content
+	 * @param maxChildren the maximum number of child elements printed for each element
+	 * @param maxDepth the maximum depth of the printed elements
+	 * @return the pretty printed content of the response
+	 * @throws StatusException if the server responded with an error status
+	 * @throws IllegalArgumentException
+	 * @throws IllegalStateException
+	 * @throws XMLStreamException
+	 * @throws ParseException on invalid JSON content
+	 * @throws IOException
+	 */
+	private String retrieveContent(HttpRequestBase request, MethodType type, String key, ResponseCache.Entry entry, boolean exampleRequired, int maxChildren, int maxDepth) throws StatusException, IllegalArgumentException, IllegalStateException, XMLStreamException, ParseException, IOException {
+		String uri = request.getURI().toString();
+		long started = System.nanoTime();
+		try(CloseableHttpResponse response = execute(request, type)){
+			RunStatistics.addTime(RunStatistics.Phase.REQUEST, started);
 			StatusLine statusLine = response.getStatusLine();
 			int statusCode = statusLine.getStatusCode();
-			if(statusCode < 200 || statusCode >= 300){
-				throw new IllegalArgumentException("Server responded: "+statusCode+" "+statusLine.getReasonPhrase());
-			}
-			org.w3c.dom.Document doc = _documentBuilder.parse(response.getEntity().getContent());
-			Node node = getExampleContent(doc);
-			if(node == null){
-				LOGGER.debug("No example content.");
-				return toString(doc);
-			}else{
-				return toString(node);
-			}
-		} catch (IllegalStateException | SAXException | IOException ex) {
-			LOGGER.error(ex, ex);
-			throw new IllegalArgumentException("Failed to parse response from url: "+uri);
+			if(statusCode == HttpStatus.SC_NOT_MODIFIED && entry != null){
+				LOGGER.debug("Content not modified for url: "+uri);
+				_cacheRevalidated.incrementAndGet();
+				RunStatistics.addOutcome(RunStatistics.Outcome.REVALIDATED);
+				_cache.put(key, entry.getContent(), getHeader(response, HttpHeaders.ETAG, entry.getETag()), getHeader(response, HttpHeaders.LAST_MODIFIED, entry.getLastModified()));
+				return entry.getContent();
+			}else if(statusCode < 200 || statusCode >= 300){
+				throw new StatusException(statusCode, "Server responded: "+statusCode+" "+statusLine.getReasonPhrase());
+			}
+			HttpEntity entity = response.getEntity();
+			CountingInputStream transferred = new CountingInputStream(entity.getContent());
+			CountingInputStream in = new LimitedInputStream(decode(transferred, entity.getContentEncoding()), _policy.getMaxResponseSize()); // decoded while parsed
+			String content = (isJson(entity.getContentType()) ? formatJson(in, exampleRequired) : format(in, exampleRequired, maxChildren, maxDepth));
+			release(in);
+			release(transferred); // the decoder may stop at the end of the encoded data, the connection is reused only if the end of the content is read
+			_bytesTransferred.addAndGet(transferred.getByteCount());
+			_bytesDecoded.addAndGet(in.getByteCount());
+			RunStatistics.addBytesRead(transferred.getByteCount(), in.getByteCount());
+			if(content == null){
+				throw new IllegalArgumentException("No example returned by url: "+uri);
+			}
+			if(_cache != null){
+				_cacheMisses.incrementAndGet();
+				RunStatistics.addOutcome(RunStatistics.Outcome.CACHE_MISS);
+				_cache.put(key, content, getHeader(response, HttpHeaders.ETAG, null), getHeader(response, HttpHeaders.LAST_MODIFIED, null));
+			}
+			return content;
 		}
 	}
 
 	/**
 	 * 
-	 * @param doc
-	 * @return node located under ELEMENT_EXAMPLE, or null if not available
-	 * @throws IOException 
-	 * @throws SAXException 
-	 * @throws IllegalStateException 
+	 * @param contentType the Content-Type header or null if none
+	 * @return true if the content is JSON, the content without type is assumed to be XML
 	 */
-	private Node getExampleContent(org.w3c.dom.Document doc) throws IllegalStateException, SAXException, IOException {
-		NodeList nodes = doc.getElementsByTagName(ELEMENT_EXAMPLE);
-		if(nodes.getLength() < 1){
-			LOGGER.debug("No element "+ELEMENT_EXAMPLE);
-			return null;
+	private static boolean isJson(Header contentType) {
+		if(contentType == null){
+			return false;
 		}
+		String mimeType = StringUtils.substringBefore(contentType.getValue(), ";").trim().toLowerCase(Locale.ROOT);
+		return (mimeType.equals(ContentType.APPLICATION_JSON.getMimeType()) || mimeType.endsWith(SUFFIX_JSON));
+	}
 
-		NodeList childNodes = null;
-		Node root = doc.getDocumentElement();
-		for(int i=0,count=nodes.getLength();i<count;++i){
-			Node node = nodes.item(i);
-			if(node.getParentNode().equals(root)){ // do not go deeper than one level below root
-				childNodes = node.getChildNodes();
-				break;
+	/**
+	 * 
+	 * @param ex
+	 * @return true if the exception was caused by an I/O error, e.g. timeout or lost connection, and the request can be retried. Exceeding the maximum response size is not transient.
+	 */
+	private static boolean isTransient(Exception ex) {
+		if(ex instanceof IOException){
+			return !(ex instanceof ResponseSizeException);
+		}else if(ex instanceof XMLStreamException){ // the parser reads the response, so the I/O errors are wrapped
+			Throwable nested = ((XMLStreamException) ex).getNestedException();
+			if(nested == null){
+				nested = ex.getCause();
 			}
+			return (nested instanceof IOException && !(nested instanceof ResponseSizeException));
+		}else{
+			return false;
 		}
-		if(childNodes == null || childNodes.getLength() < 1){
-			LOGGER.debug("No valid element "+ELEMENT_EXAMPLE);
-			return null;
+	}
+
+	/**
+	 * 
+	 * @param response
+	 * @param name
+	 * @param defaultValue
+	 * @return value of the header or the given default value if the header is not present
+	 */
+	private static String getHeader(HttpResponse response, String name, String defaultValue) {
+		Header header = response.getFirstHeader(name);
+		return (header == null ? defaultValue : header.getValue());
+	}
+
+	/**
+	 * Executes the request. GET requests are hedged if enabled by the request policy.
+	 * 
+	 * @param request
+	 * @param type
+	 * @return response for the request
+	 * @throws IOException
+	 */
+	private CloseableHttpResponse execute(HttpRequestBase request, MethodType type) throws IOException {
+		long hedgeDelay = (type == MethodType.GET ? _policy.getHedgeDelay() : -1);
+		if(hedgeDelay < 0){
+			return execute(request);
 		}
 
-		Node node = null;
-		for(int i=0,count=childNodes.getLength();i<count;++i){
-			Node child = childNodes.item(i);
-			if(child.getNodeType() == Node.ELEMENT_NODE){
-				node = child;
-				break;
+		CompletionService<CloseableHttpResponse> completion = new ExecutorCompletionService<>(getHedgeExecutor());
+		Map<Future<CloseableHttpResponse>, HttpRequestBase> requests = new HashMap<>(4);
+		try {
+			requests.put(completion.submit(createExecution(request)), request);
+			Future<CloseableHttpResponse> done = completion.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+			if(done == null){
+				LOGGER.debug("No response in "+hedgeDelay+" ms, sending a duplicate request to url: "+request.getURI().toString());
+				_hedged.incrementAndGet();
+				RunStatistics.addOutcome(RunStatistics.Outcome.HEDGED);
+				HttpGet hedge = new HttpGet(request.getURI());
+				hedge.setHeaders(request.getAllHeaders()); // e.g. the cache validators
+				requests.put(completion.submit(createExecution(hedge)), hedge);
+				done = completion.take();
+			}
+			while(true){
+				HttpRequestBase doneRequest = requests.remove(done);
+				try {
+					CloseableHttpResponse response = done.get();
+					if(doneRequest != request){
+						_hedgeWins.incrementAndGet();
+					}
+					return response;
+				} catch (ExecutionException ex) {
+					if(requests.isEmpty()){
+						Throwable cause = ex.getCause();
+						if(cause instanceof IOException){
+							throw (IOException) cause;
+						}
+						throw new IOException(cause);
+					}
+					done = completion.take(); // wait for the other request
+				}
 			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for url: "+request.getURI().toString());
+		} finally {
+			for(HttpRequestBase pending : requests.values()){ // releases the connection of the slower request
+				pending.abort();
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param request
+	 * @return task for executing the given request
+	 */
+	private Callable<CloseableHttpResponse> createExecution(final HttpRequestBase request) {
+		return new Callable<CloseableHttpResponse>() {
+			@Override
+			public CloseableHttpResponse call() throws IOException {
+				return execute(request);
+			}
+		};
+	}
+
+	/**
+	 * 
+	 * @param request
+	 * @return response for the request
+	 * @throws IOException
+	 */
+	private CloseableHttpResponse execute(HttpRequestBase request) throws IOException {
+		if(_policy.isCompression() && !request.containsHeader(HttpHeaders.ACCEPT_ENCODING)){
+			request.setHeader(HttpHeaders.ACCEPT_ENCODING, ENCODING_GZIP+", "+ENCODING_DEFLATE);
 		}
-		return node;
+		_requestCount.incrementAndGet();
+		long started = System.nanoTime();
+		CloseableHttpResponse response = _client.execute(request);
+		_policy.addLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-started));
+		return response;
+	}
+
+	/**
+	 * Advances the reader to the first child element of the element ELEMENT_EXAMPLE located directly below the root element
+	 * 
+	 * @param reader the reader positioned at the start of the document
+	 * @return true if the reader was positioned to the start of the example content, false if no example content is available
+	 * @throws XMLStreamException 
+	 */
+	private boolean getExampleContent(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 0;
+		boolean inExample = false;
+		while(reader.hasNext()){
+			switch(reader.next()){
+				case XMLStreamConstants.START_ELEMENT:
+					++depth;
+					if(inExample){ // the first element below the example
+						return true;
+					}else if(depth == 2 && ELEMENT_EXAMPLE.equals(reader.getLocalName())){ // do not go deeper than one level below root
+						inExample = true;
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if(inExample){ // only the first example is used
+						LOGGER.debug("No valid element "+ELEMENT_EXAMPLE);
+						return false;
+					}
+					--depth;
+					break;
+				default:
+					break;
+			}
+		}
+		LOGGER.debug("No element "+ELEMENT_EXAMPLE);
+		return false;
 	}
 
 	@Override
 	public void close() {
+		synchronized(this){
+			if(_executor != null){
+				_executor.shutdown(); // the queued requests will fail as the client is closed
+				_executor = null;
+			}
+			if(_hedgeExecutor != null){
+				_hedgeExecutor.shutdown();
+				_hedgeExecutor = null;
+			}
+		}
 		if(_client != null){
 			try {
 				_client.close();
 			} catch (IOException ex) {
 				LOGGER.error(ex, ex);
 			}
+			_client = null;
+			LOGGER.info("HTTP requests: "+_requestCount.get()+", connections opened: "+_connectionsOpened.get()+", connections reused: "+getConnectionsReused()+", retries: "+_retries.get()+", hedged: "+_hedged.get()+" (won: "+_hedgeWins.get()+")");
+			LOGGER.info("Response bytes transferred: "+_bytesTransferred.get()+", decoded: "+_bytesDecoded.get());
+			if(_cache != null){
+				LOGGER.info("Cache hits: "+_cacheHits.get()+", not modified: "+_cacheRevalidated.get()+", misses: "+_cacheMisses.get());
+			}
+			if(_ownsCoalescer){
+				LOGGER.info("Unique requests: "+_coalescer.getRequestCount()+", coalesced duplicates: "+_coalescer.getFoldedCount());
+			}
+		}
+		if(_ownsSnapshot){
+			_snapshot.close();
+			_ownsSnapshot = false;
 		}
 	}
 
 	/**
-	 * converts the given node into an xml document and prints out that xml document
+	 * Pretty prints the content. If ELEMENT_EXAMPLE is present, only the example content is printed.
+	 * 
+	 * The content is read only until the end of the example content. The content preceding the example is buffered until the example is found, so that the whole document can be printed if the content does not contain an example.
+	 * 
+	 * Package-private for the benchmarks, the caller must release the stream.
 	 * 
-	 * @param node
-	 * @return the given node as xml string
+	 * @param in
+	 * @param exampleRequired if true, the content must contain example content
+	 * @return the formatted content or null if example was required, but the content did not contain one
+	 * @throws XMLStreamException
+	 * @throws IOException
 	 */
-	private String toString(Node node){
-		StringWriter sw = new StringWriter();
-		try {
-			if(node.getNodeType() == Node.DOCUMENT_NODE){
-				cleanWhiteSpace((org.w3c.dom.Document) node);
-			}else{
-				cleanWhiteSpace(node.getOwnerDocument());
-			}
-			_transformer.transform(new DOMSource(node), new StreamResult(sw));
-			return sw.toString();
-		} catch (TransformerException ex) {
-			LOGGER.error(ex, ex);
-			throw new IllegalArgumentException("Invalid transformer settings.");
+	String format(InputStream in, boolean exampleRequired) throws XMLStreamException, IOException {
+		return format(in, exampleRequired, XmlFormatter.NO_LIMIT, XmlFormatter.NO_LIMIT);
+	}
+
+	/**
+	 * Pretty prints the content, see {@link #format(InputStream, boolean)}.
+	 * 
+	 * The content preceding the example is buffered in memory up to the spill threshold of the request policy, and the rest in a temporary file, which is deleted before returning.
+	 * 
+	 * @param in
+	 * @param exampleRequired if true, the content must contain example content
+	 * @param maxChildren the maximum number of child elements printed for each element
+	 * @param maxDepth the maximum depth of the printed elements
+	 * @return the formatted content or null if example was required, but the content did not contain one
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	String format(InputStream in, boolean exampleRequired, int maxChildren, int maxDepth) throws XMLStreamException, IOException {
+		RecordingInputStream recorder = new RecordingInputStream(new CloseShieldInputStream(in), (exampleRequired ? -1 : _policy.getSpillThreshold())); // the parser closes the stream at the end of the document, the response must be drained and closed by the caller
+		try{
+			return format(recorder, exampleRequired, maxChildren, maxDepth);
+		} finally {
+			recorder.stopRecording();
 		}
 	}
 
 	/**
-	 * clean whitespace around tags
 	 * 
-	 * @param doc
-	 * @throws IllegalArgumentException
+	 * @param recorder
+	 * @param exampleRequired
+	 * @param maxChildren
+	 * @param maxDepth
+	 * @return the formatted content or null if example was required, but the content did not contain one
+	 * @throws XMLStreamException
+	 * @throws IOException
 	 */
-	private void cleanWhiteSpace(org.w3c.dom.Document doc) throws IllegalArgumentException{
-		try {
-			NodeList nodeList = (NodeList) _xPath.evaluate("//text()[normalize-space()='']", doc, XPathConstants.NODESET);
-			for (int i=0;i<nodeList.getLength();++i) {
-				Node node = nodeList.item(i);
-				node.getParentNode().removeChild(node);
+	private String format(RecordingInputStream recorder, boolean exampleRequired, int maxChildren, int maxDepth) throws XMLStreamException, IOException {
+		StringWriter writer = new StringWriter();
+		XmlFormatter formatter = _formatter.get();
+		long started = System.nanoTime();
+		XMLStreamReader reader = formatter.createReader(recorder);
+		try{
+			boolean found = getExampleContent(reader);
+			RunStatistics.addTime(RunStatistics.Phase.SCAN, started);
+			if(found){
+				recorder.stopRecording();
+				started = System.nanoTime();
+				formatter.formatElement(reader, writer, maxChildren, maxDepth);
+				RunStatistics.addTime(RunStatistics.Phase.FORMAT, started);
+				return writer.toString();
+			}
+		} finally {
+			reader.close();
+		}
+		if(exampleRequired){
+			return null;
+		}
+
+		LOGGER.debug("No example content.");
+		started = System.nanoTime();
+		recorder.recordRemaining(); // the scan may have stopped before the end of the document, e.g. at an empty example
+		try(InputStream recorded = recorder.getRecorded()){
+			reader = formatter.createReader(recorded);
+			try{
+				formatter.formatDocument(reader, writer, maxChildren, maxDepth);
+			} finally {
+				reader.close();
 			}
-		} catch (XPathExpressionException ex) {
-			LOGGER.error(ex, ex);
-			throw new IllegalArgumentException("Xpath evaluation failed.");
 		}
+		RunStatistics.addTime(RunStatistics.Phase.FORMAT, started);
+		return writer.toString();
 	}
+
+	/**
+	 * Pretty prints the JSON content. If the root object has the member ELEMENT_EXAMPLE, only the value of the member is printed.
+	 * 
+	 * The content is read only until the end of the example value, and the content preceding the example is buffered in the same way as in {@link #format(InputStream, boolean, int, int)}. The content is decoded as UTF-8.
+	 * 
+	 * Package-private for the benchmarks, the caller must release the stream.
+	 * 
+	 * @param in
+	 * @param exampleRequired if true, the content must contain example content
+	 * @return the formatted content or null if example was required, but the content did not contain one
+	 * @throws ParseException
+	 * @throws IOException
+	 */
+	String formatJson(InputStream in, boolean exampleRequired) throws ParseException, IOException {
+		RecordingInputStream recorder = new RecordingInputStream(in, (exampleRequired ? -1 : _policy.getSpillThreshold()));
+		try{
+			StringWriter writer = new StringWriter();
+			JsonFormatter formatter = _jsonFormatter.get();
+			long started = System.nanoTime();
+			boolean found = formatter.findMember(new InputStreamReader(recorder, StandardCharsets.UTF_8), ELEMENT_EXAMPLE);
+			RunStatistics.addTime(RunStatistics.Phase.SCAN, started);
+			if(found){
+				recorder.stopRecording();
+				started = System.nanoTime();
+				formatter.formatValue(writer);
+				RunStatistics.addTime(RunStatistics.Phase.FORMAT, started);
+				return writer.toString();
+			}else if(exampleRequired){
+				return null;
+			}
+
+			LOGGER.debug("No example content.");
+			started = System.nanoTime();
+			recorder.recordRemaining(); // the scan stops at the start of the root value, if it is not an object
+			try(InputStream recorded = recorder.getRecorded()){
+				formatter.formatDocument(new InputStreamReader(recorded, StandardCharsets.UTF_8), writer);
+			}
+			RunStatistics.addTime(RunStatistics.Phase.FORMAT, started);
+			return writer.toString();
+		} finally {
+			recorder.stopRecording();
+		}
+	}
+
+	/**
+	 * Reads the remaining content of the given stream, if there is not much of it left, so that the connection can be reused. Otherwise, the connection will be closed with the response.
+	 * 
+	 * @param in
+	 * @throws IOException
+	 */
+	private static void release(InputStream in) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		for(long remaining = DRAIN_LIMIT; remaining > 0;){
+			int read = in.read(buffer);
+			if(read < 0){
+				return;
+			}
+			remaining -= read;
+		}
+		LOGGER.debug("Skipped reading the rest of the content.");
+	}
+
+	/**
+	 * Input stream which keeps a copy of the content read, until recording is stopped. The copy is kept in memory up to the given threshold, and in a temporary file after that.
+	 * 
+	 */
+	private static class RecordingInputStream extends FilterInputStream {
+		private DeferredFileOutputStream _recorded = null;
+
+		/**
+		 * 
+		 * @param in
+		 * @param threshold the size in bytes after which the content is recorded to a temporary file, if negative, nothing is recorded
+		 */
+		public RecordingInputStream(InputStream in, int threshold) {
+			super(in);
+			if(threshold >= 0){
+				_recorded = new DeferredFileOutputStream(threshold, "javadocer-", ".xml", null);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b >= 0 && _recorded != null){
+				_recorded.write(b);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if(read > 0 && _recorded != null){
+				_recorded.write(b, off, read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if(_recorded == null){
+				return super.skip(n);
+			}
+			byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+			int read = read(buffer, 0, buffer.length);
+			return Math.max(0, read);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		/**
+		 * Stop recording and release the recorded content, the streams returned by {@link #getRecorded()} must be closed before calling this
+		 */
+		public void stopRecording() {
+			if(_recorded == null){
+				return;
+			}
+			try {
+				_recorded.close();
+			} catch (IOException ex) {
+				LOGGER.debug(ex, ex);
+			}
+			if(!_recorded.isInMemory()){
+				FileUtils.deleteQuietly(_recorded.getFile());
+			}
+			_recorded = null;
+		}
+
+		/**
+		 * Reads the rest of the content, so that the recorded content is complete
+		 * 
+		 * @throws IllegalStateException if recording has been stopped
+		 * @throws IOException
+		 */
+		public void recordRemaining() throws IllegalStateException, IOException {
+			if(_recorded == null){
+				throw new IllegalStateException("Not recording.");
+			}
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while(read(buffer, 0, buffer.length) >= 0){
+				// recorded by read
+			}
+		}
+
+		/**
+		 * 
+		 * @return stream of the recorded content, the caller must close the stream
+		 * @throws IllegalStateException if recording has been stopped
+		 * @throws IOException
+		 */
+		public InputStream getRecorded() throws IllegalStateException, IOException {
+			if(_recorded == null){
+				throw new IllegalStateException("Not recording.");
+			}
+			_recorded.close();
+			if(_recorded.isInMemory()){
+				return new ByteArrayInputStream(_recorded.getData());
+			}
+			LOGGER.debug("Reading "+_recorded.getByteCount()+" bytes of recorded content from file: "+_recorded.getFile().getPath());
+			return new FileInputStream(_recorded.getFile());
+		}
+	} // class RecordingInputStream
+
+	/**
+	 * Counting input stream which fails when more than the given number of bytes has been read.
+	 * 
+	 */
+	private static class LimitedInputStream extends CountingInputStream {
+		private long _maxSize = 0;
+
+		/**
+		 * 
+		 * @param in
+		 * @param maxSize the maximum number of bytes, if negative, the size is not limited
+		 */
+		public LimitedInputStream(InputStream in, long maxSize) {
+			super(in);
+			_maxSize = maxSize;
+		}
+
+		@Override
+		protected void beforeRead(int n) throws IOException {
+			if(_maxSize >= 0 && getByteCount() > _maxSize){ // the limit is checked before the next read, so at most one buffer more than the limit is read
+				throw new ResponseSizeException("Response exceeds the maximum size of "+_maxSize+" bytes.");
+			}
+		}
+	} // class LimitedInputStream
+
+	/**
+	 * Thrown when the response exceeds the maximum size, the request is not retried.
+	 * 
+	 */
+	private static class ResponseSizeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * 
+		 * @param message
+		 */
+		public ResponseSizeException(String message) {
+			super(message);
+		}
+	} // class ResponseSizeException
+
+	/**
+	 * Connection factory which keeps count of the opened connections.
+	 *
+	 */
+	private class CountingConnectionFactory implements HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> {
+		@Override
+		public ManagedHttpClientConnection create(HttpRoute route, ConnectionConfig config) {
+			_connectionsOpened.incrementAndGet();
+			return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+		}
+	} // class CountingConnectionFactory
+
+	/**
+	 * Keep-alive strategy which honors the server provided timeout, and uses {@value tut.pori.javadocer.Javadocer#KEEP_ALIVE_DEFAULT} ms if none is given.
+	 *
+	 */
+	private static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			return (duration < 0 ? KEEP_ALIVE_DEFAULT : duration);
+		}
+	} // class KeepAliveStrategy
 }
@@ -15,9 +15,8 @@
  */
 package tut.pori.javadocer;
 
-import java.lang.reflect.Field;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
@@ -30,6 +29,10 @@ import tut.pori.javadocer.Javadocer.MethodType;
 public class JavadocerParameters{
 	/** Attribute name for body_uri */
 	public static final String ATTRIBUTE_BODY_URI = "body_uri";
+	/** Attribute name for the maximum number of child elements printed for each element */
+	public static final String ATTRIBUTE_MAX_CHILDREN = "max_children";
+	/** Attribute name for the maximum depth of the printed elements */
+	public static final String ATTRIBUTE_MAX_DEPTH = "max_depth";
 	/** Attribute name for method */
 	public static final String ATTRIBUTE_METHOD = "method";
 	/** Attribute name for query uri */
@@ -39,140 +42,105 @@ public class JavadocerParameters{
 	/** Attribute name for HTTP method type */
 	public static final String ATTRIBUTE_TYPE = "type";
 	private static final Logger LOGGER = Logger.getLogger(JavadocerParameters.class);
-	private String _bodyUri = null;
-	private String _method = null;
-	private String _query = null;
-	private String _service = null;
-	private MethodType _type = null;
+	private static final ConstantResolver RESOLVER = new ConstantResolver(); // shared by all parse calls
+	private static final JavadocerParameters NO_PARAMETERS = new JavadocerParameters(null, XmlFormatter.NO_LIMIT, XmlFormatter.NO_LIMIT, null, null, null, null); // memoized result for text without attributes
+	private static final int MAX_PARSED = 10000; // the memoized results are cleared when exceeded, e.g. by the long-running daemon
+	private static final ConcurrentMap<String, JavadocerParameters> PARSED = new ConcurrentHashMap<>(); // tag text - parsed parameters
+	private final String _bodyUri;
+	private final int _maxChildren;
+	private final int _maxDepth;
+	private final String _method;
+	private final String _query;
+	private final String _service;
+	private final MethodType _type;
 	
 	/**
+	 * @param bodyUri
+	 * @param maxChildren
+	 * @param maxDepth
+	 * @param method
+	 * @param query
+	 * @param service
+	 * @param type
 	 * @see #parse(String)
 	 */
-	private JavadocerParameters(){
-		// nothing needed
+	private JavadocerParameters(String bodyUri, int maxChildren, int maxDepth, String method, String query, String service, MethodType type){
+		_bodyUri = bodyUri;
+		_maxChildren = maxChildren;
+		_maxDepth = maxDepth;
+		_method = method;
+		_query = query;
+		_service = service;
+		_type = type;
 	}
 	
 	/**
 	 * {@link JavadocerParameters#parse} expects the following attributes:
 	 * <ul>
 	 * 	<li>body_uri - the uri where to retrieve HTTP Body content for the request. The request is always assumed to be GET and the uri should contain all required parameters. The uri is relative to the configured rest_uri. The value can be left empty or the attribute can be omitted if no body content is required.</li>
+	 * 	<li>max_children - optional, the maximum number of child elements printed for each element of the example, the rest are replaced by a comment telling the number of omitted elements</li>
+	 * 	<li>max_depth - optional, the maximum depth of the printed elements of the example, the root element being on depth 1. The deeper elements are omitted in the same way as with max_children.</li>
 	 * 	<li>method - the REST method name</li>
 	 * 	<li>query - query uri without the ? prefix. The value can be left empty or the attribute omitted if no additional query parameters are required</li>
 	 * 	<li>service - the REST service name</li>
 	 * 	<li>type - HTTP method type, e.g. GET, POST</li>
 	 * </ul>
 	 * 
+	 * The attributes are separated by whitespace, and the values must be enclosed in double quotes. The values may contain whitespace, but not double quotes. Unknown attributes are ignored.
+	 * 
 	 * Parameter values inside [] are assumed to be initialized constants (e.g. package.class#constant for static final String constant in class <i>class</i> and package <i>package</i>), and the values will be resolved before calling the URIs.
 	 * Note that if [] marking is used, the Javadoc generator must have access to the source code in which the constants are declared.
+	 * The constants are resolved using reflection, so the compiled classes must be in the class path.
+	 * 
+	 * The results are memoized by the given text (up to a fixed number of texts), and the returned instances are immutable.
 	 * 
 	 * @param params String of parameters, e.g. <br/><code>service="ts" method="test" type="POST" query="par1=1&par2=2" body_uri="/ts/test2?par3=3"</code>
-	 * @return the parsed parameters
+	 * @return the parsed parameters or null if the given string contains no attributes
+	 * @throws IllegalArgumentException on syntax error, the message contains the position of the error
+	 * @see #parse(String, tut.pori.javadocer.ConstantResolver.Source)
 	 */
-	public static JavadocerParameters parse(String params){
-		Pattern pattern = Pattern.compile("\\w+=\"[\\S]*\"");
-        Matcher matcher = pattern.matcher(params);        
-        JavadocerParameters javadocerParameters = null;
-        while(matcher.find()){        	
-        	String param = matcher.group(0);
-        	if(StringUtils.contains(param, "=")){
-        		String tokens[] = StringUtils.split(param, "=", 2);
-        		String value = null;
-        		if(tokens.length<2){
-        			LOGGER.debug("Ignored parameter without value.");
-        			continue;
-        		}else{
-        			if(javadocerParameters == null){
-        				javadocerParameters = new JavadocerParameters();
-        			}
-        			value = resolveValue(tokens[1]);
-        		}
-        		switch(tokens[0]){
-        			case ATTRIBUTE_BODY_URI:
-        				javadocerParameters.setBodyUri(value);
-        				break;
-        			case ATTRIBUTE_METHOD:
-        				javadocerParameters.setMethod(value);
-        				break;
-        			case ATTRIBUTE_QUERY:
-        				javadocerParameters.setQuery(value);
-        				break;
-        			case ATTRIBUTE_SERVICE:
-        				javadocerParameters.setService(value);
-        				break;
-        			case ATTRIBUTE_TYPE:
-        				javadocerParameters.setType(MethodType.fromString(value));
-        				break;
-        			default:
-        				break;
-        		}
-        	}
-        }
-        return javadocerParameters;
+	public static JavadocerParameters parse(String params) throws IllegalArgumentException{
+		return parse(params, null);
 	}
 	
 	/**
-	 * Strips the given value of surrounding "" and resolves all constant references marked with []
 	 * 
-	 * @param value
-	 * @return the value as its cleaned form
-	 * @throws IllegalArgumentException 
+	 * @param params
+	 * @param source the source used for resolving the constants, if null or if the source does not know the constant, the constants are resolved using reflection. The source may resolve the class names relative to the location of the tag, so the text with constant references is not memoized when a source is given.
+	 * @return the parsed parameters or null if the given string contains no attributes
+	 * @throws IllegalArgumentException on syntax error, the message contains the position of the error
+	 * @see #parse(String)
+	 * @see ConstantResolver
 	 */
-	private static String resolveValue(String value) throws IllegalArgumentException{
-		String retValue = StringUtils.remove(value, "\"");
-		if(StringUtils.isBlank(retValue)){
-			LOGGER.debug("Blank value.");
-			return null;
+	public static JavadocerParameters parse(String params, ConstantResolver.Source source) throws IllegalArgumentException{
+		if(source != null && params.indexOf('[') >= 0){
+			return parseUncached(params, source);
 		}
-		int valueLength = retValue.length();
-		StringBuilder valueBuilder = new StringBuilder(valueLength);
-		StringBuilder resolveBuilder = new StringBuilder(valueLength);
-		boolean inBrackets = false;
-		for(int i=0;i<valueLength;++i){
-			char c = retValue.charAt(i);
-			if(c == '['){
-				inBrackets = true;
-			}else if(c == ']'){
-				if(!inBrackets){
-					throw new IllegalArgumentException("Invalid value: "+value);
-				}
-				inBrackets = false;
-				valueBuilder.append(lookupVariable(resolveBuilder.toString()));
-				resolveBuilder.setLength(0);
-			}else if(inBrackets){
-				resolveBuilder.append(c);
-			}else{ // not in brackets
-				valueBuilder.append(c);
+		JavadocerParameters parsed = PARSED.get(params);
+		if(parsed == null){
+			parsed = new Lexer(params, source).parse();
+			if(PARSED.size() >= MAX_PARSED){
+				PARSED.clear();
 			}
+			PARSED.putIfAbsent(params, parsed);
 		}
-		if(inBrackets){
-			throw new IllegalArgumentException("Invalid value: "+value);
-		}
-		
-		return valueBuilder.toString();
+		return (parsed == NO_PARAMETERS ? null : parsed);
 	}
 	
 	/**
+	 * Parses the text without memoizing the result, for measuring the parser itself. The constant values are still cached by the resolver.
 	 * 
-	 * @param path valid initialized constant path, e.g. package.class#constant
-	 * @return the value referenced by the given path
-	 * @throws IllegalArgumentException 
+	 * @param params
+	 * @param source
+	 * @return the parsed parameters or null if the given string contains no attributes
+	 * @throws IllegalArgumentException on syntax error
+	 * @see #parse(String, tut.pori.javadocer.ConstantResolver.Source)
 	 */
-	protected static Object lookupVariable(String path) throws IllegalArgumentException {
-		String[] parts = StringUtils.split(path, '#');
-		if(parts.length != 2){
-			throw new IllegalArgumentException("Invalid path: "+path);
-		}		
-				
-		try {
-			Field field = Class.forName(parts[0]).getDeclaredField(parts[1]);
-			field.setAccessible(true); // override protected and private
-			return field.get(null);
-		} catch (ClassNotFoundException | NoSuchFieldException | SecurityException | IllegalAccessException ex) {
-			LOGGER.error(ex, ex);
-			throw new IllegalArgumentException("Invalid path: "+path);
-		}    	
+	static JavadocerParameters parseUncached(String params, ConstantResolver.Source source) throws IllegalArgumentException{
+		JavadocerParameters parsed = new Lexer(params, source).parse();
+		return (parsed == NO_PARAMETERS ? null : parsed);
 	}
-
+	
 	/**
 	 * @return the bodyUri
 	 */
@@ -181,24 +149,24 @@ public class JavadocerParameters{
 	}
 
 	/**
-	 * @param bodyUri the bodyUri to set
+	 * @return the maximum number of child elements printed for each element or {@value tut.pori.javadocer.XmlFormatter#NO_LIMIT} if not limited
 	 */
-	public void setBodyUri(String bodyUri) {
-		_bodyUri = bodyUri;
+	public int getMaxChildren() {
+		return _maxChildren;
 	}
 
 	/**
-	 * @return the method
+	 * @return the maximum depth of the printed elements or {@value tut.pori.javadocer.XmlFormatter#NO_LIMIT} if not limited
 	 */
-	public String getMethod() {
-		return _method;
+	public int getMaxDepth() {
+		return _maxDepth;
 	}
 
 	/**
-	 * @param method the method to set
+	 * @return the method
 	 */
-	public void setMethod(String method) {
-		_method = method;
+	public String getMethod() {
+		return _method;
 	}
 
 	/**
@@ -209,37 +177,264 @@ public class JavadocerParameters{
 	}
 
 	/**
-	 * @param query the query to set
+	 * @return the service
 	 */
-	public void setQuery(String query) {
-		_query = query;
+	public String getService() {
+		return _service;
 	}
 
 	/**
-	 * @return the service
+	 * @return the type
 	 */
-	public String getService() {
-		return _service;
+	public MethodType getType() {
+		return _type;
+	}
+
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj){
+			return true;
+		}else if(obj == null || getClass() != obj.getClass()){
+			return false;
+		}else{
+			return toString().equals(obj.toString());
+		}
 	}
 
 	/**
-	 * @param service the service to set
+	 * @return the parameters in the normalized attribute format accepted by {@link #parse(String)}, with constant references resolved
 	 */
-	public void setService(String service) {
-		_service = service;
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		append(sb, ATTRIBUTE_SERVICE, _service);
+		append(sb, ATTRIBUTE_METHOD, _method);
+		append(sb, ATTRIBUTE_TYPE, (_type == null ? null : _type.toString()));
+		append(sb, ATTRIBUTE_QUERY, _query);
+		append(sb, ATTRIBUTE_BODY_URI, _bodyUri);
+		append(sb, ATTRIBUTE_MAX_CHILDREN, (_maxChildren == XmlFormatter.NO_LIMIT ? null : String.valueOf(_maxChildren)));
+		append(sb, ATTRIBUTE_MAX_DEPTH, (_maxDepth == XmlFormatter.NO_LIMIT ? null : String.valueOf(_maxDepth)));
+		return sb.toString();
 	}
 
 	/**
-	 * @return the type
+	 * 
+	 * @param sb
+	 * @param attribute
+	 * @param value if null, nothing is appended
 	 */
-	public MethodType getType() {
-		return _type;
+	private static void append(StringBuilder sb, String attribute, String value) {
+		if(value == null){
+			return;
+		}
+		if(sb.length() > 0){
+			sb.append(' ');
+		}
+		sb.append(attribute);
+		sb.append("=\"");
+		sb.append(value);
+		sb.append('"');
 	}
 
 	/**
-	 * @param type the type to set
+	 * Single-pass lexer for the attribute syntax accepted by {@link JavadocerParameters#parse(String)}
+	 * 
 	 */
-	public void setType(MethodType type) {
-		_type = type;
-	}	
+	private static class Lexer {
+		private int _position = 0;
+		private ConstantResolver.Source _source = null;
+		private String _text = null;
+
+		/**
+		 * 
+		 * @param text
+		 * @param source
+		 */
+		public Lexer(String text, ConstantResolver.Source source) {
+			_text = text;
+			_source = source;
+		}
+
+		/**
+		 * 
+		 * @return the parsed parameters or {@link JavadocerParameters#NO_PARAMETERS} if the text contains no attributes
+		 * @throws IllegalArgumentException
+		 */
+		public JavadocerParameters parse() throws IllegalArgumentException {
+			String bodyUri = null;
+			int maxChildren = XmlFormatter.NO_LIMIT;
+			int maxDepth = XmlFormatter.NO_LIMIT;
+			String method = null;
+			String query = null;
+			String service = null;
+			MethodType type = null;
+			boolean found = false;
+			int length = _text.length();
+			skipWhiteSpace();
+			while(_position < length){
+				int start = _position;
+				String name = readName();
+				expect('=');
+				String value = readValue();
+				if(_position < length && !Character.isWhitespace(_text.charAt(_position))){
+					throw error("whitespace");
+				}
+				skipWhiteSpace();
+				found = true;
+				switch(name){
+					case ATTRIBUTE_BODY_URI:
+						bodyUri = value;
+						break;
+					case ATTRIBUTE_MAX_CHILDREN:
+						maxChildren = parseLimit(value, start);
+						break;
+					case ATTRIBUTE_MAX_DEPTH:
+						maxDepth = parseLimit(value, start);
+						break;
+					case ATTRIBUTE_METHOD:
+						method = value;
+						break;
+					case ATTRIBUTE_QUERY:
+						query = value;
+						break;
+					case ATTRIBUTE_SERVICE:
+						service = value;
+						break;
+					case ATTRIBUTE_TYPE:
+						try{
+							type = MethodType.fromString(value);
+						} catch (IllegalArgumentException ex) {
+							throw new IllegalArgumentException(ex.getMessage()+" at position "+(start+1)+" in: "+_text);
+						}
+						break;
+					default:
+						LOGGER.debug("Ignored unknown attribute: "+name);
+						break;
+				}
+			}
+			return (found ? new JavadocerParameters(bodyUri, maxChildren, maxDepth, method, query, service, type) : NO_PARAMETERS);
+		}
+
+		/**
+		 * 
+		 * @param value
+		 * @param start the position of the attribute
+		 * @return the limit or {@value tut.pori.javadocer.XmlFormatter#NO_LIMIT} if the value is null
+		 * @throws IllegalArgumentException if the value is not a positive integer
+		 */
+		private int parseLimit(String value, int start) throws IllegalArgumentException {
+			if(value == null){
+				return XmlFormatter.NO_LIMIT;
+			}
+			try{
+				int limit = Integer.parseInt(value.trim());
+				if(limit > 0){
+					return limit;
+				}
+			} catch (NumberFormatException ex) {
+				LOGGER.debug(ex, ex);
+			}
+			throw new IllegalArgumentException("Expected positive integer but found \""+value+"\" at position "+(start+1)+" in: "+_text);
+		}
+
+		/**
+		 * 
+		 * @return the attribute name, consisting of letters, digits and underscores
+		 * @throws IllegalArgumentException
+		 */
+		private String readName() throws IllegalArgumentException {
+			int start = _position;
+			for(int length = _text.length(); _position < length; ++_position){
+				char c = _text.charAt(_position);
+				if(!Character.isLetterOrDigit(c) && c != '_'){
+					break;
+				}
+			}
+			if(_position == start){
+				throw error("attribute name");
+			}
+			return _text.substring(start, _position);
+		}
+
+		/**
+		 * Reads the quoted value and resolves all constant references marked with []
+		 * 
+		 * @return the value or null if the value is blank
+		 * @throws IllegalArgumentException
+		 */
+		private String readValue() throws IllegalArgumentException {
+			expect('"');
+			int start = _position;
+			int end = _text.indexOf('"', start);
+			if(end < 0){
+				_position = _text.length();
+				throw error("'\"'");
+			}
+			_position = end+1;
+			if(StringUtils.isBlank(_text.substring(start, end))){
+				LOGGER.debug("Blank value.");
+				return null;
+			}
+			
+			StringBuilder value = new StringBuilder(end-start);
+			int reference = -1; // the start of the current constant reference, or -1 if none
+			for(int i=start;i<end;++i){
+				char c = _text.charAt(i);
+				if(c == '['){
+					if(reference >= 0){
+						throw new IllegalArgumentException("Unexpected '[' at position "+(i+1)+" in: "+_text);
+					}
+					reference = i+1;
+				}else if(c == ']'){
+					if(reference < 0){
+						throw new IllegalArgumentException("Unexpected ']' at position "+(i+1)+" in: "+_text);
+					}
+					value.append(RESOLVER.resolve(_text.substring(reference, i), _source));
+					reference = -1;
+				}else if(reference < 0){
+					value.append(c);
+				}
+			}
+			if(reference >= 0){
+				throw new IllegalArgumentException("Expected ']' but found '\"' at position "+(end+1)+" in: "+_text);
+			}
+			return value.toString();
+		}
+
+		/**
+		 * 
+		 * @param c
+		 * @throws IllegalArgumentException if the next character is not the given character
+		 */
+		private void expect(char c) throws IllegalArgumentException {
+			if(_position >= _text.length() || _text.charAt(_position) != c){
+				throw error("'"+c+"'");
+			}
+			++_position;
+		}
+
+		/**
+		 * 
+		 */
+		private void skipWhiteSpace() {
+			for(int length = _text.length(); _position < length && Character.isWhitespace(_text.charAt(_position)); ++_position){
+				// skip
+			}
+		}
+
+		/**
+		 * 
+		 * @param expected
+		 * @return exception describing the unexpected content at the current position
+		 */
+		private IllegalArgumentException error(String expected) {
+			String found = (_position < _text.length() ? "'"+_text.charAt(_position)+"'" : "end of text");
+			return new IllegalArgumentException("Expected "+expected+" but found "+found+" at position "+(_position+1)+" in: "+_text);
+		}
+	} // class Lexer
 }
@@ -0,0 +1,497 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.text.ParseException;
+import java.util.BitSet;
+
+import org.apache.commons.io.output.NullWriter;
+
+/**
+ * Single-pass pretty printer for JSON content.
+ * 
+ * Reads the content from the given reader and writes it directly to the given writer, indenting the object members and the array elements by {@value tut.pori.javadocer.JsonFormatter#INDENT_AMOUNT} spaces.
+ * The output matches the output of JSON.stringify(value, null, 2) of ECMAScript, except that the strings and the numbers are not modified:
+ * <ul>
+ * 	<li>each member and element is printed on its own line, and the member names are followed by a colon and a space</li>
+ * 	<li>empty objects and arrays are printed as {} and []</li>
+ * 	<li>strings and numbers are printed as they are in the source, including the escape sequences</li>
+ * </ul>
+ * 
+ * The content can also be printed as highlighted HTML, in which case the member names and the values are wrapped in &lt;span&gt; elements while they are printed, see {@link HtmlRenderer}.
+ * 
+ * A byte order mark at the start of the content is skipped. The syntax is validated while the content is printed. No tree is built, and the memory use does not depend on the size or the nesting of the content. The instances are not thread-safe.
+ */
+public class JsonFormatter {
+	/** number of spaces used for indentation */
+	public static final int INDENT_AMOUNT = 2;
+	private static final int BUFFER_SIZE = 8192;
+	private static final char BYTE_ORDER_MARK = '\uFEFF';
+	private static final String LITERAL_FALSE = "false";
+	private static final String LITERAL_NULL = "null";
+	private static final String LITERAL_TRUE = "true";
+	private char[] _buffer = new char[BUFFER_SIZE];
+	private HtmlEscapingWriter _html = null; // null if the output is not highlighted
+	private int _length = 0; // the number of characters in the buffer
+	private String _lineSeparator = System.lineSeparator();
+	private BitSet _objects = new BitSet(); // true for each open object, false for each open array
+	private long _offset = 0; // the position of the buffer in the content
+	private int _position = 0; // the position in the buffer
+	private Reader _reader = null;
+	private StringBuilder _token = new StringBuilder(); // the current member name or literal
+	private Writer _writer = null;
+
+	/**
+	 * Formats the whole document
+	 * 
+	 * @param reader the content
+	 * @param writer
+	 * @throws IOException
+	 * @throws ParseException on syntax error, the error offset is the position of the error in the content
+	 */
+	public void formatDocument(Reader reader, Writer writer) throws IOException, ParseException {
+		start(reader, writer);
+		try{
+			skipByteOrderMark();
+			value();
+			if(skipWhiteSpace() >= 0){
+				throw error("end of content");
+			}
+			_writer.write(_lineSeparator);
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * Formats the whole document as highlighted HTML. Formatting is idempotent, so the text of formatted content is not changed.
+	 * 
+	 * @param reader the content
+	 * @param writer
+	 * @throws IOException
+	 * @throws ParseException on syntax error, the error offset is the position of the error in the content
+	 */
+	public void highlightDocument(Reader reader, HtmlEscapingWriter writer) throws IOException, ParseException {
+		_html = writer;
+		formatDocument(reader, writer);
+	}
+
+	/**
+	 * Advances to the value of the member of the root object, the value can then be formatted by {@link #formatValue(Writer)}. If the root object has multiple members with the given name, the first one is used.
+	 * 
+	 * @param reader the content
+	 * @param name the name of the member
+	 * @return true if the member was found, false if the content is not an object or the object does not have the given member. If the content is not an object, the rest of the content is not read.
+	 * @throws IOException
+	 * @throws ParseException on syntax error, the error offset is the position of the error in the content
+	 */
+	public boolean findMember(Reader reader, String name) throws IOException, ParseException {
+		start(reader, NullWriter.NULL_WRITER); // the other members are read through
+		boolean found = false;
+		try{
+			skipByteOrderMark();
+			if(skipWhiteSpace() != '{'){
+				return false;
+			}
+			++_position;
+			if(skipWhiteSpace() == '}'){
+				return false;
+			}
+			while(true){
+				_token.setLength(0);
+				member(true);
+				if(_token.length() == name.length()+2 && _token.indexOf(name) == 1){ // the name is kept with the quotes
+					found = true;
+					return true;
+				}
+				value();
+				int c = skipWhiteSpace();
+				if(c == '}'){
+					return false;
+				}else if(c != ','){
+					throw error("',' or '}'");
+				}
+				++_position;
+			}
+		} finally {
+			if(!found){
+				end();
+			}
+		}
+	}
+
+	/**
+	 * Formats the value found by {@link #findMember(Reader, String)} as a new document
+	 * 
+	 * @param writer
+	 * @throws IllegalStateException if no member has been found
+	 * @throws IOException
+	 * @throws ParseException on syntax error
+	 */
+	public void formatValue(Writer writer) throws IllegalStateException, IOException, ParseException {
+		if(_reader == null){
+			throw new IllegalStateException("No member found.");
+		}
+		_writer = writer;
+		try{
+			value();
+			_writer.write(_lineSeparator);
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * 
+	 * @param reader
+	 * @param writer
+	 */
+	private void start(Reader reader, Writer writer) {
+		_reader = reader;
+		_writer = writer;
+		_length = 0;
+		_offset = 0;
+		_position = 0;
+	}
+
+	/**
+	 * Releases the reader and the writer
+	 */
+	private void end() {
+		_html = null;
+		_reader = null;
+		_writer = null;
+		_token.setLength(0);
+	}
+
+	/**
+	 * Prints the next value, including the content of objects and arrays
+	 * 
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	private void value() throws IOException, ParseException {
+		int depth = 0; // the open objects and arrays are kept in _objects instead of recursion, so that deep content does not overflow the stack
+		while(true){
+			int c = skipWhiteSpace();
+			switch(c){
+				case '{':
+				case '[':
+					++_position;
+					_writer.write(c);
+					int close = (c == '{' ? '}' : ']');
+					if(skipWhiteSpace() == close){
+						++_position;
+						_writer.write(close);
+						break;
+					}
+					_objects.set(depth, (c == '{'));
+					++depth;
+					indent(depth);
+					if(c == '{'){
+						member(false);
+					}
+					continue; // the first member or element
+				case '"':
+					startSpan(HtmlRenderer.CLASS_VALUE);
+					string(false);
+					endSpan();
+					break;
+				default:
+					literal();
+					break;
+			}
+
+			while(true){ // close the objects and arrays ending after the value
+				if(depth == 0){
+					return;
+				}
+				boolean object = _objects.get(depth-1);
+				c = skipWhiteSpace();
+				if(c == ','){
+					++_position;
+					_writer.write(',');
+					indent(depth);
+					if(object){
+						member(false);
+					}
+					break;
+				}else if(c == (object ? '}' : ']')){
+					++_position;
+					--depth;
+					indent(depth);
+					_writer.write(c);
+				}else{
+					throw error(object ? "',' or '}'" : "',' or ']'");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prints the member name and the following colon
+	 * 
+	 * @param keep if true, the name is appended to the token
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	private void member(boolean keep) throws IOException, ParseException {
+		if(skipWhiteSpace() != '"'){
+			throw error("member name");
+		}
+		startSpan(HtmlRenderer.CLASS_ATTRIBUTE);
+		string(keep);
+		endSpan();
+		if(skipWhiteSpace() != ':'){
+			throw error("':'");
+		}
+		++_position;
+		_writer.write(": ");
+	}
+
+	/**
+	 * Prints the string starting at the current position as-is
+	 * 
+	 * @param keep if true, the string is appended to the token
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	private void string(boolean keep) throws IOException, ParseException {
+		++_position; // the opening quote
+		print('"', keep);
+		boolean escape = false;
+		int hexDigits = 0; // the number of hex digits remaining in an unicode escape sequence
+		while(true){
+			if(_position == _length && !fill()){
+				throw error("'\"'");
+			}
+			char c = _buffer[_position];
+			if(hexDigits > 0){
+				if(Character.digit(c, 16) < 0){
+					throw error("hex digit");
+				}
+				--hexDigits;
+			}else if(escape){
+				switch(c){
+					case 'u':
+						hexDigits = 4;
+						break;
+					case '"':
+					case '\\':
+					case '/':
+					case 'b':
+					case 'f':
+					case 'n':
+					case 'r':
+					case 't':
+						break;
+					default:
+						throw error("escape sequence");
+				}
+				escape = false;
+			}else if(c == '"'){
+				++_position;
+				print(c, keep);
+				return;
+			}else if(c == '\\'){
+				escape = true;
+			}else if(c < 0x20){ // control characters must be escaped
+				throw error("'\"'");
+			}
+			++_position;
+			print(c, keep);
+		}
+	}
+
+	/**
+	 * Prints the number, true, false or null starting at the current position
+	 * 
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	private void literal() throws IOException, ParseException {
+		_token.setLength(0);
+		long start = _offset+_position;
+		while(_position < _length || fill()){
+			char c = _buffer[_position];
+			if(!Character.isLetterOrDigit(c) && c != '-' && c != '+' && c != '.'){
+				break;
+			}
+			_token.append(c);
+			++_position;
+		}
+		if(!isNumber(_token) && !LITERAL_TRUE.contentEquals(_token) && !LITERAL_FALSE.contentEquals(_token) && !LITERAL_NULL.contentEquals(_token)){
+			String found = (_token.length() > 0 ? "'"+_token+"'" : (_position < _length ? "'"+_buffer[_position]+"'" : "end of content"));
+			throw new ParseException("Expected value but found "+found+" at position "+(start+1), (int) start);
+		}
+		startSpan(HtmlRenderer.CLASS_VALUE);
+		for(int i=0, length=_token.length();i<length;++i){
+			_writer.write(_token.charAt(i));
+		}
+		endSpan();
+	}
+
+	/**
+	 * 
+	 * @param token
+	 * @return true if the token is a valid JSON number
+	 */
+	private static boolean isNumber(CharSequence token) {
+		int length = token.length();
+		int i = 0;
+		if(i < length && token.charAt(i) == '-'){
+			++i;
+		}
+		if(i < length && token.charAt(i) == '0'){ // no leading zeros
+			++i;
+		}else if(skipDigits(token, i) == i){
+			return false;
+		}else{
+			i = skipDigits(token, i);
+		}
+		if(i < length && token.charAt(i) == '.'){
+			int start = i+1;
+			i = skipDigits(token, start);
+			if(i == start){
+				return false;
+			}
+		}
+		if(i < length && (token.charAt(i) == 'e' || token.charAt(i) == 'E')){
+			++i;
+			if(i < length && (token.charAt(i) == '+' || token.charAt(i) == '-')){
+				++i;
+			}
+			int start = i;
+			i = skipDigits(token, start);
+			if(i == start){
+				return false;
+			}
+		}
+		return (i == length);
+	}
+
+	/**
+	 * 
+	 * @param token
+	 * @param start
+	 * @return the index of the first non-digit character at or after start
+	 */
+	private static int skipDigits(CharSequence token, int start) {
+		int i = start;
+		for(int length = token.length(); i < length && token.charAt(i) >= '0' && token.charAt(i) <= '9'; ++i){
+			// skip
+		}
+		return i;
+	}
+
+	/**
+	 * 
+	 * @param c
+	 * @param keep if true, the character is appended to the token
+	 * @throws IOException
+	 */
+	private void print(char c, boolean keep) throws IOException {
+		_writer.write(c);
+		if(keep){
+			_token.append(c);
+		}
+	}
+
+	/**
+	 * 
+	 * @param cssClass
+	 */
+	private void startSpan(String cssClass) {
+		if(_html != null){
+			_html.startSpan(cssClass);
+		}
+	}
+
+	/**
+	 * 
+	 */
+	private void endSpan() {
+		if(_html != null){
+			_html.endSpan();
+		}
+	}
+
+	/**
+	 * Skips the byte order mark at the start of the content, if any
+	 * 
+	 * @throws IOException
+	 */
+	private void skipByteOrderMark() throws IOException {
+		if((_position < _length || fill()) && _buffer[_position] == BYTE_ORDER_MARK){
+			++_position;
+		}
+	}
+
+	/**
+	 * Skips the whitespace, but not the following character
+	 * 
+	 * @return the next character or -1 at the end of the content
+	 * @throws IOException
+	 */
+	private int skipWhiteSpace() throws IOException {
+		while(_position < _length || fill()){
+			char c = _buffer[_position];
+			if(c != ' ' && c != '\t' && c != '\n' && c != '\r'){
+				return c;
+			}
+			++_position;
+		}
+		return -1;
+	}
+
+	/**
+	 * 
+	 * @return false if the end of the content was reached
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		_offset += _length;
+		_position = 0;
+		_length = Math.max(0, _reader.read(_buffer));
+		return (_length > 0);
+	}
+
+	/**
+	 * 
+	 * @param depth
+	 * @throws IOException
+	 */
+	private void indent(int depth) throws IOException {
+		_writer.write(_lineSeparator);
+		for(int i=depth*INDENT_AMOUNT;i>0;--i){
+			_writer.write(' ');
+		}
+	}
+
+	/**
+	 * 
+	 * @param expected
+	 * @return exception describing the unexpected content at the current position
+	 */
+	private ParseException error(String expected) {
+		long position = _offset+_position;
+		String found = (_position < _length ? "'"+_buffer[_position]+"'" : "end of content");
+		return new ParseException("Expected "+expected+" but found "+found+" at position "+(position+1), (int) position);
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Resolves and renders all {&#64;doc.restlet} tags of the given source tree outside the javadoc, e.g. before the javadoc is run or as a separate build step.
+ * 
+ * The tags are collected from the source files, parsed with {@link JavadocerParameters#parse(String)}, deduplicated, retrieved and rendered to HTML concurrently.
+ * The fragments are written to a {@link FragmentStore}, which {@link Restlet} reads when the property {@value tut.pori.javadocer.FragmentStore#PROPERTY_PREFETCH_FILE} is set.
+ * If the output path is an existing directory, each fragment is written to a separate file, otherwise all fragments are written to a single file.
+ * Tags which cannot be resolved are skipped, and will be retrieved (and reported) by {@link Restlet} as usual.
+ * 
+ * Usage: Prefetcher [source directory] [output file or directory] [thread count (optional)]
+ */
+public final class Prefetcher {
+	private static final int DEFAULT_THREAD_COUNT = 8;
+	private static final Logger LOGGER = Logger.getLogger(Prefetcher.class);
+	private static final Pattern TAG_PATTERN = Pattern.compile("\\{@doc\\.restlet\\s+([^}]*)\\}");
+	private static final int STATUS_EXCEPTION = -1;
+
+	/**
+	 * 
+	 */
+	private Prefetcher(){
+		// nothing needed
+	}
+
+	/**
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if(args.length < 2){
+			System.err.println("Usage: "+Prefetcher.class.getName()+" [source directory] [output file or directory] [thread count (optional)]");
+			System.exit(STATUS_EXCEPTION);
+		}
+		try{
+			int threadCount = (args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_THREAD_COUNT);
+			Map<String, String> fragments = prefetch(findTags(new File(args[0])), threadCount);
+			FragmentStore.write(new File(args[1]), fragments);
+		} catch (Throwable ex) {
+			LOGGER.error(ex, ex);
+			System.exit(STATUS_EXCEPTION);
+		}
+	}
+
+	/**
+	 * 
+	 * @param directory
+	 * @return the text of all restlet tags in the java files of the given directory and its sub-directories
+	 * @throws IOException
+	 */
+	public static List<String> findTags(File directory) throws IOException {
+		List<String> tags = new ArrayList<>();
+		for(File file : FileUtils.listFiles(directory, new String[]{"java"}, true)){
+			Matcher matcher = TAG_PATTERN.matcher(FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+			while(matcher.find()){
+				tags.add(FragmentStore.normalize(matcher.group(1)));
+			}
+		}
+		LOGGER.debug("Found "+tags.size()+" tags.");
+		return tags;
+	}
+
+	/**
+	 * 
+	 * @param tags
+	 * @param threadCount
+	 * @return the rendered fragments keyed by {@link FragmentStore#getKey(String)}
+	 * @throws InterruptedException
+	 */
+	public static Map<String, String> prefetch(Collection<String> tags, int threadCount) throws InterruptedException {
+		Map<String, JavadocerParameters> tagParameters = new HashMap<>(tags.size()*2); // key - parameters
+		Set<JavadocerParameters> parameters = new LinkedHashSet<>();
+		for(String tag : tags){
+			try{
+				JavadocerParameters params = JavadocerParameters.parse(tag);
+				if(params != null){
+					tagParameters.put(FragmentStore.getKey(tag), params);
+					parameters.add(params);
+				}
+			} catch (IllegalArgumentException ex) {
+				LOGGER.warn("Skipped invalid tag: "+tag, ex);
+			}
+		}
+		LOGGER.info("Prefetching "+parameters.size()+" unique requests of "+tags.size()+" tags.");
+
+		RequestCoalescer coalescer = new RequestCoalescer(); // e.g. the body content is often shared by several requests
+		final SnapshotArchive snapshot = SnapshotArchive.fromSystemProperties();
+		final Javadocer javadocer = new Javadocer(ResponseCache.fromSystemProperties(), coalescer, snapshot); // shared by all threads, the connection pool limits the concurrent requests
+
+		final HtmlRenderer renderer = HtmlRenderer.fromSystemProperties();
+		final RunStatistics statistics = RunStatistics.getInstance(); // reported on exit
+		List<Callable<String>> tasks = new ArrayList<>(parameters.size());
+		for(final JavadocerParameters params : parameters){
+			tasks.add(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					RunStatistics.Sample sample = statistics.begin(null, params.toString()); // the source positions are not known
+					try{
+						String content = javadocer.retrieveContent(params);
+						if(StringUtils.isBlank(content)){
+							return null; // left for the taglet
+						}
+						long started = System.nanoTime();
+						String html = renderer.render(params, content); // as in Restlet
+						RunStatistics.addTime(RunStatistics.Phase.ESCAPE, started);
+						RunStatistics.addBytesWritten(html.length());
+						return html;
+					} catch (Throwable ex) {
+						RunStatistics.addOutcome(RunStatistics.Outcome.FAILED);
+						throw ex;
+					} finally {
+						statistics.end(sample);
+					}
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threadCount, tasks.size())), VirtualThreads.getFactory("prefetch-", Executors.defaultThreadFactory()));
+		Map<JavadocerParameters, String> rendered = new HashMap<>(tasks.size()*2);
+		try{
+			List<Future<String>> results = executor.invokeAll(tasks);
+			int i = 0;
+			for(JavadocerParameters params : parameters){
+				try {
+					String html = results.get(i++).get();
+					if(html != null){
+						rendered.put(params, html);
+					}
+				} catch (ExecutionException ex) {
+					LOGGER.warn("Failed to prefetch: "+params.toString(), ex.getCause());
+				}
+			}
+		} finally {
+			executor.shutdown();
+			javadocer.close();
+			if(snapshot != null){
+				snapshot.close();
+			}
+		}
+		Map<String, String> fragments = new HashMap<>(tagParameters.size()*2);
+		for(Map.Entry<String, JavadocerParameters> e : tagParameters.entrySet()){
+			String html = rendered.get(e.getValue());
+			if(html != null){
+				fragments.put(e.getKey(), html); // the tags with the same parameters share the fragment
+			}
+		}
+		LOGGER.info("Prefetched "+rendered.size()+" of "+parameters.size()+" requests, coalesced duplicates: "+coalescer.getFoldedCount());
+		return fragments;
+	}
+}
@@ -0,0 +1,521 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Local daemon, which keeps a warm engine (the HTTP connections, the response cache and the JIT compiled code) and the rendered fragments between the javadoc runs.
+ * 
+ * The daemon listens to the given port on the loopback interface. {@link Restlet} sends the text of each tag to the daemon, when the property {@value tut.pori.javadocer.RenderDaemon#PROPERTY_DAEMON_PORT} is set, and falls back to rendering the tag in the javadoc process if the daemon is not running.
+ * The rendered fragments are kept in the memory for the time given by the property {@value tut.pori.javadocer.RenderDaemon#PROPERTY_DAEMON_TTL}, after which the tag is rendered again (and the response revalidated, if the response cache is enabled).
+ * 
+ * Tags with constant references (marked with []) are not rendered by the daemon, but by {@link Restlet}, which resolves the constants from the current javadoc model. The daemon outlives the builds, so the constants it could resolve would not change with the source files.
+ * Tags which cannot be parsed by the daemon are also rendered by {@link Restlet}.
+ * 
+ * Each connection is served by its own thread (a virtual thread on Java 21 or later, see {@link VirtualThreads}), so idle clients do not prevent new clients from connecting. The number of tags rendered concurrently is limited by the given thread count.
+ * 
+ * The hit rate and the uptime of the daemon are returned by the status command and logged when the daemon is stopped.
+ * 
+ * Usage: RenderDaemon [port] [render thread count (optional)] to start the daemon, or RenderDaemon [port] [status|stop] to query or stop a running daemon
+ */
+public final class RenderDaemon implements Closeable {
+	/** System property name used to define the port of the daemon, if not set, the daemon is not used */
+	public static final String PROPERTY_DAEMON_PORT = "tut.pori.javadocer.daemon_port";
+	/** System property name used to define the time in seconds the rendered fragments are kept by the daemon, default is 300, 0 disables the fragment cache */
+	public static final String PROPERTY_DAEMON_TTL = "tut.pori.javadocer.daemon_ttl";
+	private static final int CONNECT_TIMEOUT = 1000; // ms, the daemon is local
+	private static final int DEFAULT_THREAD_COUNT = 8;
+	private static final long DEFAULT_TTL = 300;
+	private static final Logger LOGGER = Logger.getLogger(RenderDaemon.class);
+	private static final int MAX_FRAGMENTS = 10000;
+	private static final int READ_TIMEOUT = 300000; // ms, long enough for the retries of a single tag
+	private static final int STATUS_EXCEPTION = -1;
+	private RequestCoalescer _coalescer = null;
+	private ExecutorService _executor = null; // a thread for each connection
+	private FragmentCache _fragments = null;
+	private AtomicLong _hits = new AtomicLong();
+	private Javadocer _javadocer = null;
+	private Semaphore _renderPermits = null; // limits the concurrent rendering, the connections are not limited
+	private HtmlRenderer _renderer = null;
+	private AtomicLong _requests = new AtomicLong();
+	private ServerSocket _serverSocket = null;
+	private Set<Socket> _sockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>()); // the open connections, closed with the daemon
+	private long _started = 0;
+	private long _ttl = 0;
+	private AtomicLong _unresolved = new AtomicLong();
+
+	/**
+	 * the commands sent to the daemon
+	 * 
+	 */
+	public enum Command {
+		/** render the given tag text */
+		RENDER,
+		/** return the report of the daemon */
+		STATUS,
+		/** stop the daemon */
+		STOP
+	} // enum Command
+
+	/**
+	 * the status of a response
+	 * 
+	 */
+	public enum Status {
+		/** the content is the rendered fragment, empty if the tag has no content */
+		OK,
+		/** the daemon could not parse the tag or the tag contains constant references, it should be rendered by the client */
+		UNRESOLVED,
+		/** the content is the error message */
+		FAILED
+	} // enum Status
+
+	/**
+	 * A response of the daemon
+	 * 
+	 */
+	public static class Response {
+		private String _content = null;
+		private Status _status = null;
+
+		/**
+		 * 
+		 * @param status
+		 * @param content
+		 */
+		public Response(Status status, String content) {
+			_status = status;
+			_content = content;
+		}
+
+		/**
+		 * @return the rendered fragment, the report or the error message, depending on the status
+		 */
+		public String getContent() {
+			return _content;
+		}
+
+		/**
+		 * @return the status
+		 */
+		public Status getStatus() {
+			return _status;
+		}
+	} // class Response
+
+	/**
+	 * A rendered fragment
+	 * 
+	 */
+	private static class Fragment {
+		private long _expires = 0;
+		private String _html = null;
+
+		/**
+		 * 
+		 * @param html
+		 * @param expires
+		 */
+		public Fragment(String html, long expires) {
+			_html = html;
+			_expires = expires;
+		}
+	} // class Fragment
+
+	/**
+	 * Least recently used fragments, synchronize the access
+	 * 
+	 */
+	private static class FragmentCache extends LinkedHashMap<String, Fragment> {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * 
+		 */
+		public FragmentCache() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Fragment> eldest) {
+			return size() > MAX_FRAGMENTS;
+		}
+	} // class FragmentCache
+
+	/**
+	 * Client for a running daemon. The client uses a single connection, and is not thread-safe.
+	 * 
+	 */
+	public static class Client implements Closeable {
+		private DataInputStream _in = null;
+		private DataOutputStream _out = null;
+		private Socket _socket = null;
+
+		/**
+		 * 
+		 * @param port
+		 * @throws IOException if the daemon is not running
+		 */
+		public Client(int port) throws IOException {
+			_socket = new Socket();
+			try{
+				_socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+				_socket.setSoTimeout(READ_TIMEOUT);
+				_socket.setTcpNoDelay(true);
+				_in = new DataInputStream(new BufferedInputStream(_socket.getInputStream()));
+				_out = new DataOutputStream(new BufferedOutputStream(_socket.getOutputStream()));
+			} catch (IOException ex) {
+				_socket.close();
+				throw ex;
+			}
+		}
+
+		/**
+		 * 
+		 * @return client connected to the daemon defined by the system property {@value tut.pori.javadocer.RenderDaemon#PROPERTY_DAEMON_PORT} or null if the property is not set, snapshots are used or the daemon is not running
+		 */
+		public static Client fromSystemProperties() {
+			String port = System.getProperty(PROPERTY_DAEMON_PORT);
+			if(StringUtils.isBlank(port)){
+				return null;
+			}
+			if(!StringUtils.isBlank(System.getProperty(SnapshotArchive.PROPERTY_SNAPSHOT_MODE))){
+				LOGGER.debug("Snapshots are only supported in-process, the daemon is not used.");
+				return null;
+			}
+			try {
+				Client client = new Client(Integer.parseInt(port.trim()));
+				LOGGER.debug("Connected to the daemon on port "+port);
+				return client;
+			} catch (NumberFormatException ex) {
+				LOGGER.warn("Bad "+PROPERTY_DAEMON_PORT+": "+port);
+				return null;
+			} catch (IOException ex) {
+				LOGGER.info("Daemon is not running on port "+port+", rendering in-process.");
+				LOGGER.debug(ex, ex);
+				return null;
+			}
+		}
+
+		/**
+		 * 
+		 * @param tagText
+		 * @return the response of the daemon
+		 * @throws IOException on connection failure
+		 */
+		public Response render(String tagText) throws IOException {
+			return send(Command.RENDER, tagText);
+		}
+
+		/**
+		 * 
+		 * @param command
+		 * @param text the tag text for {@link Command#RENDER}, null otherwise
+		 * @return the response of the daemon
+		 * @throws IOException on connection failure
+		 */
+		public Response send(Command command, String text) throws IOException {
+			_out.writeInt(command.ordinal());
+			writeString(_out, text);
+			_out.flush();
+			int status = _in.readInt();
+			if(status < 0 || status >= Status.values().length){
+				throw new IOException("Invalid response status: "+status);
+			}
+			return new Response(Status.values()[status], readString(_in));
+		}
+
+		@Override
+		public void close() {
+			try {
+				_socket.close();
+			} catch (IOException ex) {
+				LOGGER.debug(ex, ex);
+			}
+		}
+	} // class Client
+
+	/**
+	 * Starts the daemon, call {@link #run()} to accept the connections
+	 * 
+	 * @param port
+	 * @param threadCount the maximum number of tags rendered concurrently
+	 * @param ttl the time in seconds the rendered fragments are kept
+	 * @throws IOException if the port cannot be bound
+	 * @throws IllegalArgumentException on invalid configuration
+	 */
+	public RenderDaemon(int port, int threadCount, long ttl) throws IOException, IllegalArgumentException {
+		_ttl = TimeUnit.SECONDS.toMillis(ttl);
+		_fragments = new FragmentCache();
+		_coalescer = new RequestCoalescer(false); // the results are kept by the fragment cache, only for the ttl
+		_javadocer = new Javadocer(ResponseCache.fromSystemProperties(), _coalescer); // shared by all threads
+		_renderer = HtmlRenderer.fromSystemProperties();
+		_renderPermits = new Semaphore(threadCount);
+		_executor = Executors.newCachedThreadPool(VirtualThreads.getFactory("daemon-", Executors.defaultThreadFactory())); // the clients keep the connections open for the whole javadoc run
+		_serverSocket = new ServerSocket();
+		_serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		_started = System.currentTimeMillis();
+		LOGGER.info("Daemon listening on "+_serverSocket.getLocalSocketAddress()+", fragment ttl: "+ttl+" s");
+	}
+
+	/**
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if(args.length < 1){
+			System.err.println("Usage: "+RenderDaemon.class.getName()+" [port] [render thread count (optional) | status | stop]");
+			System.exit(STATUS_EXCEPTION);
+		}
+		try{
+			int port = Integer.parseInt(args[0]);
+			if(args.length > 1 && !StringUtils.isNumeric(args[1])){
+				try(Client client = new Client(port)){
+					System.out.println(client.send(Command.valueOf(args[1].toUpperCase(Locale.ROOT)), null).getContent());
+				}
+				return;
+			}
+			long ttl = Long.parseLong(StringUtils.defaultIfBlank(System.getProperty(PROPERTY_DAEMON_TTL), String.valueOf(DEFAULT_TTL)).trim());
+			final RenderDaemon daemon = new RenderDaemon(port, (args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_THREAD_COUNT), ttl);
+			Runtime.getRuntime().addShutdownHook(new Thread("daemon-shutdown"){
+				@Override
+				public void run() {
+					daemon.close();
+				}
+			});
+			daemon.run();
+		} catch (Throwable ex) {
+			LOGGER.error(ex, ex);
+			System.exit(STATUS_EXCEPTION);
+		}
+	}
+
+	/**
+	 * Accepts the connections until the daemon is closed
+	 */
+	public void run() {
+		while(!_serverSocket.isClosed()){
+			final Socket socket;
+			try {
+				socket = _serverSocket.accept();
+			} catch (IOException ex) {
+				if(!_serverSocket.isClosed()){
+					LOGGER.error(ex, ex);
+				}
+				continue;
+			}
+			_executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					serve(socket);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Serves the requests of a single connection until closed by the client
+	 * 
+	 * @param socket
+	 */
+	private void serve(Socket socket) {
+		_sockets.add(socket);
+		try(Socket s = socket){
+			s.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			while(true){
+				int command = in.readInt();
+				String text = readString(in);
+				Response response = null;
+				if(command == Command.RENDER.ordinal()){
+					response = render(text);
+				}else if(command == Command.STATUS.ordinal() || command == Command.STOP.ordinal()){
+					response = new Response(Status.OK, getReport());
+				}else{
+					response = new Response(Status.FAILED, "Unknown command: "+command);
+				}
+				out.writeInt(response.getStatus().ordinal());
+				writeString(out, response.getContent());
+				out.flush();
+				if(command == Command.STOP.ordinal()){
+					close();
+					return;
+				}
+			}
+		} catch (EOFException | SocketException ex) { // closed by the client
+			LOGGER.debug(ex, ex);
+		} catch (IOException ex) {
+			LOGGER.warn("Connection failed.", ex);
+		} finally {
+			_sockets.remove(socket);
+		}
+	}
+
+	/**
+	 * 
+	 * @param tagText
+	 * @return the response for the given tag
+	 */
+	private Response render(String tagText) {
+		_requests.incrementAndGet();
+		String key = FragmentStore.getKey(tagText);
+		long now = System.currentTimeMillis();
+		Fragment fragment = null;
+		synchronized (_fragments) {
+			fragment = _fragments.get(key);
+		}
+		if(fragment != null && fragment._expires > now){
+			_hits.incrementAndGet();
+			return new Response(Status.OK, fragment._html);
+		}
+
+		JavadocerParameters params = null;
+		try{
+			params = (StringUtils.contains(tagText, '[') ? null : JavadocerParameters.parse(tagText)); // the constants may have changed since they were resolved and memoized
+		} catch (IllegalArgumentException ex) { // e.g. syntax error, reported by the client
+			LOGGER.debug(ex, ex);
+		}
+		if(params == null){
+			_unresolved.incrementAndGet();
+			return new Response(Status.UNRESOLVED, null);
+		}
+
+		String html = null;
+		try{
+			_renderPermits.acquire();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return new Response(Status.FAILED, "Interrupted while waiting to render.");
+		}
+		try{
+			String content = _javadocer.retrieveContent(params);
+			html = (StringUtils.isBlank(content) ? "" : _renderer.render(params, content));
+		} catch (Throwable ex) { // reported by the client
+			LOGGER.debug(ex, ex);
+			return new Response(Status.FAILED, ex.getMessage());
+		} finally {
+			_renderPermits.release();
+		}
+		if(_ttl > 0){
+			synchronized (_fragments) {
+				_fragments.put(key, new Fragment(html, now+_ttl));
+			}
+		}
+		return new Response(Status.OK, html);
+	}
+
+	/**
+	 * 
+	 * @return the uptime and the hit rate of the daemon
+	 */
+	public String getReport() {
+		long requests = _requests.get();
+		long hits = _hits.get();
+		int fragments = 0;
+		synchronized (_fragments) {
+			fragments = _fragments.size();
+		}
+		return String.format("uptime: %s, tags: %d, fragment hits: %d (%.1f%%), unresolved: %d, cached fragments: %d, HTTP requests: %d, coalesced duplicates: %d",
+				DurationFormatUtils.formatDurationWords(System.currentTimeMillis()-_started, true, true), requests, hits, (requests < 1 ? 0 : 100.0*hits/requests),
+				_unresolved.get(), fragments, _javadocer.getRequestCount(), _coalescer.getFoldedCount());
+	}
+
+	/**
+	 * 
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if(value == null){
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * 
+	 * @param in
+	 * @return the next string
+	 * @throws IOException
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0){
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Stops the daemon and closes the engine
+	 */
+	@Override
+	public synchronized void close() {
+		if(_serverSocket.isClosed()){
+			return;
+		}
+		try {
+			_serverSocket.close();
+		} catch (IOException ex) {
+			LOGGER.debug(ex, ex);
+		}
+		for(Socket socket : _sockets){ // the clients keep the connections open until they exit
+			try {
+				socket.close();
+			} catch (IOException ex) {
+				LOGGER.debug(ex, ex);
+			}
+		}
+		_executor.shutdown();
+		LOGGER.info("Daemon stopped, "+getReport());
+		_javadocer.close();
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Coalesces identical requests made during a single run.
+ * 
+ * The first caller of {@link #execute(String, Callable)} for a key executes the request, concurrent callers with the same key wait for the result, and later callers get the stored result.
+ * Failed requests are not stored, and will be executed again by the next caller. If the results are not kept, only the concurrent callers share the result, and the next caller executes the request again, e.g. when the results are cached elsewhere for a limited time.
+ * 
+ * Asynchronous requests started by {@link #executeAsync(String, Callable)} share the same results, so a synchronous caller may wait for an asynchronous request and vice versa.
+ * 
+ * This class is thread-safe, and the same instance can be shared by multiple {@link Javadocer} instances.
+ */
+public class RequestCoalescer {
+	private static final Logger LOGGER = Logger.getLogger(RequestCoalescer.class);
+	private AtomicLong _folded = new AtomicLong();
+	private boolean _keepResults = true;
+	private ConcurrentMap<String, CompletableFuture<String>> _results = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a coalescer which keeps the results for its lifetime
+	 */
+	public RequestCoalescer() {
+		// nothing needed
+	}
+
+	/**
+	 * 
+	 * @param keepResults if false, the results are removed when the requests complete, and only the requests in progress are coalesced
+	 */
+	public RequestCoalescer(boolean keepResults) {
+		_keepResults = keepResults;
+	}
+
+	/**
+	 * 
+	 * @param key the normalized request
+	 * @param request
+	 * @return result of the request
+	 * @throws IllegalArgumentException on failure
+	 */
+	public String execute(String key, Callable<String> request) throws IllegalArgumentException {
+		CompletableFuture<String> result = new CompletableFuture<>();
+		CompletableFuture<String> existing = _results.putIfAbsent(key, result);
+		if(existing == null){
+			try {
+				complete(key, result, request.call());
+			} catch (Throwable ex) {
+				fail(key, result, ex);
+			}
+		}else{
+			LOGGER.debug("Coalesced request: "+key);
+			_folded.incrementAndGet();
+			RunStatistics.addOutcome(RunStatistics.Outcome.COALESCED);
+			result = existing;
+		}
+
+		try {
+			return result.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalArgumentException("Interrupted while waiting for: "+key);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if(cause instanceof IllegalArgumentException){
+				throw (IllegalArgumentException) cause;
+			}
+			LOGGER.error(cause, cause);
+			throw new IllegalArgumentException("Request failed: "+key);
+		}
+	}
+
+	/**
+	 * 
+	 * @param key the normalized request
+	 * @param request called to start the request, if there is no stored or pending result for the given key
+	 * @return future result of the request, on failure the future completes with the exception thrown by the request, generally {@link IllegalArgumentException}
+	 */
+	public CompletableFuture<String> executeAsync(final String key, Callable<CompletableFuture<String>> request) {
+		final CompletableFuture<String> result = new CompletableFuture<>();
+		CompletableFuture<String> existing = _results.putIfAbsent(key, result);
+		if(existing != null){
+			LOGGER.debug("Coalesced request: "+key);
+			_folded.incrementAndGet();
+			return existing;
+		}
+
+		try {
+			request.call().whenComplete(new BiConsumer<String, Throwable>() {
+				@Override
+				public void accept(String content, Throwable ex) {
+					if(ex == null){
+						complete(key, result, content);
+					}else{
+						fail(key, result, ex);
+					}
+				}
+			});
+		} catch (Throwable ex) {
+			fail(key, result, ex);
+		}
+		return result;
+	}
+
+	/**
+	 * Completes the result, and removes it if the results are not kept
+	 * 
+	 * @param key
+	 * @param result
+	 * @param content
+	 */
+	private void complete(String key, CompletableFuture<String> result, String content) {
+		if(!_keepResults){
+			_results.remove(key, result);
+		}
+		result.complete(content);
+	}
+
+	/**
+	 * Removes the failed result so that the request can be retried, and completes the result with the original cause of the failure
+	 * 
+	 * @param key
+	 * @param result
+	 * @param ex
+	 */
+	private void fail(String key, CompletableFuture<String> result, Throwable ex) {
+		_results.remove(key, result);
+		result.completeExceptionally((ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex);
+	}
+
+	/**
+	 * 
+	 * @return the number of requests that were served using the result of an identical request
+	 */
+	public long getFoldedCount() {
+		return _folded.get();
+	}
+
+	/**
+	 * 
+	 * @return the number of unique requests which are still in progress or, if the results are kept, have completed successfully
+	 */
+	public int getRequestCount() {
+		return _results.size();
+	}
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.log4j.Logger;
+
+/**
+ * Timeouts, retries, hedging and response size limits used for the HTTP requests.
+ * 
+ * <ul>
+ * 	<li>{@value tut.pori.javadocer.RequestPolicy#PROPERTY_CONNECT_TIMEOUT}, {@value tut.pori.javadocer.RequestPolicy#PROPERTY_SOCKET_TIMEOUT} and {@value tut.pori.javadocer.RequestPolicy#PROPERTY_REQUEST_TIMEOUT} define the timeouts in ms</li>
+ * 	<li>{@value tut.pori.javadocer.RequestPolicy#PROPERTY_MAX_RETRIES} defines how many times failed GET and DELETE requests are retried, POST requests are never retried</li>
+ * 	<li>{@value tut.pori.javadocer.RequestPolicy#PROPERTY_RETRY_DELAY} defines the base delay in ms, the delay before each retry is random, up to the base delay doubled for each previous retry</li>
+ * 	<li>{@value tut.pori.javadocer.RequestPolicy#PROPERTY_HEDGE_PERCENTILE} enables hedging, a duplicate GET request is sent if the response takes longer than the given percentile of the previous responses</li>
+ * 	<li>{@value tut.pori.javadocer.RequestPolicy#PROPERTY_MAX_RESPONSE_SIZE} defines the maximum size of the decoded response, the larger responses fail without retries</li>
+ * 	<li>{@value tut.pori.javadocer.RequestPolicy#PROPERTY_SPILL_THRESHOLD} defines how much of the response content is buffered in memory, the rest is buffered in a temporary file</li>
+ * </ul>
+ * 
+ * The requests are retried on I/O errors and on HTTP 429, 502, 503 and 504 responses. This class is thread-safe.
+ */
+public class RequestPolicy {
+	/** System property name used to define the size in bytes of the request body content after which the body is sent gzip encoded, default is -1 (disabled), the server must support gzip encoded requests */
+	public static final String PROPERTY_BODY_COMPRESSION_THRESHOLD = "tut.pori.javadocer.body_compression_threshold";
+	/** System property name used to define whether gzip and deflate encoded responses are accepted, default is true */
+	public static final String PROPERTY_COMPRESSION = "tut.pori.javadocer.compression";
+	/** System property name used to define the connect timeout in ms, default is 10000 */
+	public static final String PROPERTY_CONNECT_TIMEOUT = "tut.pori.javadocer.connect_timeout";
+	/** System property name used to define the percentile (1-99) of the response time after which a duplicate GET request is sent, default is 0 (disabled) */
+	public static final String PROPERTY_HEDGE_PERCENTILE = "tut.pori.javadocer.hedge_percentile";
+	/** System property name used to define the size of the connection pool, i.e. the maximum number of concurrent requests of an engine, default is 10 */
+	public static final String PROPERTY_MAX_CONNECTIONS = "tut.pori.javadocer.max_connections";
+	/** System property name used to define the maximum size in bytes of the decoded response content, default is 104857600 (100 MB), -1 for no limit */
+	public static final String PROPERTY_MAX_RESPONSE_SIZE = "tut.pori.javadocer.max_response_size";
+	/** System property name used to define the maximum number of retries, default is 2 */
+	public static final String PROPERTY_MAX_RETRIES = "tut.pori.javadocer.max_retries";
+	/** System property name used to define the time in ms to wait for a free connection from the connection pool, default is 60000 */
+	public static final String PROPERTY_REQUEST_TIMEOUT = "tut.pori.javadocer.request_timeout";
+	/** System property name used to define the base delay between retries in ms, default is 500 */
+	public static final String PROPERTY_RETRY_DELAY = "tut.pori.javadocer.retry_delay";
+	/** System property name used to define the maximum time in ms between two packets of the response, default is 60000 */
+	public static final String PROPERTY_SOCKET_TIMEOUT = "tut.pori.javadocer.socket_timeout";
+	/** System property name used to define the size in bytes after which the buffered response content is written to a temporary file, default is 1048576 (1 MB) */
+	public static final String PROPERTY_SPILL_THRESHOLD = "tut.pori.javadocer.spill_threshold";
+	private static final int HEDGE_MIN_SAMPLES = 20; // the number of responses required before hedging is started
+	private static final int LATENCY_SAMPLES = 1000; // the number of latest responses used for calculating the percentile
+	private static final Logger LOGGER = Logger.getLogger(RequestPolicy.class);
+	private static final long MAX_RETRY_DELAY = 30000;
+	private static final int SC_TOO_MANY_REQUESTS = 429; // not defined in HttpStatus
+	private int _bodyCompressionThreshold = -1;
+	private boolean _compression = true;
+	private int _connectTimeout = 10000;
+	private int _hedgePercentile = 0;
+	private long[] _latencies = new long[LATENCY_SAMPLES]; // ring buffer
+	private long _latencyCount = 0;
+	private int _maxConnections = 10;
+	private long _maxResponseSize = 104857600;
+	private int _maxRetries = 2;
+	private int _requestTimeout = 60000;
+	private long _retryDelay = 500;
+	private int _socketTimeout = 60000;
+	private int _spillThreshold = 1048576;
+
+	/**
+	 * Creates a policy with the default values
+	 */
+	public RequestPolicy() {
+		// nothing needed
+	}
+
+	/**
+	 * 
+	 * @return policy configured using the system properties
+	 * @throws IllegalArgumentException on invalid configuration
+	 */
+	public static RequestPolicy fromSystemProperties() throws IllegalArgumentException {
+		RequestPolicy policy = new RequestPolicy();
+		try{
+			policy._bodyCompressionThreshold = Integer.parseInt(System.getProperty(PROPERTY_BODY_COMPRESSION_THRESHOLD, String.valueOf(policy._bodyCompressionThreshold)));
+			policy._compression = Boolean.parseBoolean(System.getProperty(PROPERTY_COMPRESSION, String.valueOf(policy._compression)));
+			policy._connectTimeout = Integer.parseInt(System.getProperty(PROPERTY_CONNECT_TIMEOUT, String.valueOf(policy._connectTimeout)));
+			policy._hedgePercentile = Integer.parseInt(System.getProperty(PROPERTY_HEDGE_PERCENTILE, String.valueOf(policy._hedgePercentile)));
+			policy._maxConnections = Integer.parseInt(System.getProperty(PROPERTY_MAX_CONNECTIONS, String.valueOf(policy._maxConnections)));
+			policy._maxResponseSize = Long.parseLong(System.getProperty(PROPERTY_MAX_RESPONSE_SIZE, String.valueOf(policy._maxResponseSize)));
+			policy._maxRetries = Integer.parseInt(System.getProperty(PROPERTY_MAX_RETRIES, String.valueOf(policy._maxRetries)));
+			policy._requestTimeout = Integer.parseInt(System.getProperty(PROPERTY_REQUEST_TIMEOUT, String.valueOf(policy._requestTimeout)));
+			policy._retryDelay = Long.parseLong(System.getProperty(PROPERTY_RETRY_DELAY, String.valueOf(policy._retryDelay)));
+			policy._socketTimeout = Integer.parseInt(System.getProperty(PROPERTY_SOCKET_TIMEOUT, String.valueOf(policy._socketTimeout)));
+			policy._spillThreshold = Integer.parseInt(System.getProperty(PROPERTY_SPILL_THRESHOLD, String.valueOf(policy._spillThreshold)));
+		} catch (NumberFormatException ex) {
+			LOGGER.error(ex, ex);
+			throw new IllegalArgumentException("Bad request policy configuration.");
+		}
+		if(policy._hedgePercentile < 0 || policy._hedgePercentile > 99 || policy._maxRetries < 0 || policy._retryDelay < 0){
+			throw new IllegalArgumentException("Bad "+PROPERTY_HEDGE_PERCENTILE+", "+PROPERTY_MAX_RETRIES+" or "+PROPERTY_RETRY_DELAY);
+		}
+		if(policy._maxConnections < 1){
+			throw new IllegalArgumentException("Bad "+PROPERTY_MAX_CONNECTIONS);
+		}
+		if(policy._spillThreshold < 0){
+			throw new IllegalArgumentException("Bad "+PROPERTY_SPILL_THRESHOLD);
+		}
+		return policy;
+	}
+
+	/**
+	 * 
+	 * @return the request configuration containing the timeouts
+	 */
+	public RequestConfig createRequestConfig() {
+		return RequestConfig.custom()
+				.setConnectTimeout(_connectTimeout)
+				.setConnectionRequestTimeout(_requestTimeout)
+				.setSocketTimeout(_socketTimeout)
+				.build();
+	}
+
+	/**
+	 * 
+	 * @return the size in bytes of the request body after which the body is gzip encoded or -1 if disabled
+	 */
+	public int getBodyCompressionThreshold() {
+		return _bodyCompressionThreshold;
+	}
+
+	/**
+	 * 
+	 * @return true if compressed responses are accepted
+	 */
+	public boolean isCompression() {
+		return _compression;
+	}
+
+	/**
+	 * 
+	 * @return the size of the connection pool
+	 */
+	public int getMaxConnections() {
+		return _maxConnections;
+	}
+
+	/**
+	 * 
+	 * @return the maximum size in bytes of the decoded response content or -1 if not limited
+	 */
+	public long getMaxResponseSize() {
+		return _maxResponseSize;
+	}
+
+	/**
+	 * 
+	 * @return the size in bytes after which the buffered response content is written to a temporary file
+	 */
+	public int getSpillThreshold() {
+		return _spillThreshold;
+	}
+
+	/**
+	 * 
+	 * @return the maximum number of retries
+	 */
+	public int getMaxRetries() {
+		return _maxRetries;
+	}
+
+	/**
+	 * 
+	 * @param statusCode
+	 * @return true if the request can be retried after the given response
+	 */
+	public static boolean isRetryable(int statusCode) {
+		switch(statusCode){
+			case SC_TOO_MANY_REQUESTS:
+			case HttpStatus.SC_BAD_GATEWAY:
+			case HttpStatus.SC_SERVICE_UNAVAILABLE:
+			case HttpStatus.SC_GATEWAY_TIMEOUT:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * 
+	 * @param retry the number of the retry, starting from 0
+	 * @return random delay in ms before the given retry
+	 */
+	public long getRetryDelay(int retry) {
+		long maxDelay = Math.min(MAX_RETRY_DELAY, _retryDelay << Math.min(retry, 20));
+		return (maxDelay < 1 ? 0 : ThreadLocalRandom.current().nextLong(maxDelay+1));
+	}
+
+	/**
+	 * 
+	 * @param latency the time in ms until the response was received
+	 */
+	public synchronized void addLatency(long latency) {
+		_latencies[(int) (_latencyCount % LATENCY_SAMPLES)] = latency;
+		++_latencyCount;
+	}
+
+	/**
+	 * 
+	 * @return the time in ms after which a duplicate request should be sent or -1 if hedging is disabled or there are not enough samples
+	 */
+	public synchronized long getHedgeDelay() {
+		if(_hedgePercentile < 1 || _latencyCount < HEDGE_MIN_SAMPLES){
+			return -1;
+		}
+		int count = (int) Math.min(_latencyCount, LATENCY_SAMPLES);
+		long[] sorted = Arrays.copyOf(_latencies, count);
+		Arrays.sort(sorted);
+		return sorted[Math.min(count-1, count*_hedgePercentile/100)];
+	}
+}
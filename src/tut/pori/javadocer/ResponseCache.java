@@ -0,0 +1,318 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+import tut.pori.javadocer.Javadocer.MethodType;
+
+/**
+ * Persistent, disk-backed cache for the rendered responses.
+ * 
+ * Each entry is stored in a separate file named by the hash of the request (HTTP method type, full URI and hash of the request body), and contains the ETag and Last-Modified validators returned by the server, and the rendered content.
+ * The total size of the cache is limited, and the least recently used entries are evicted when the limit is exceeded. The temporary files left behind by interrupted writes are deleted when the cache is opened, and are not counted in the size.
+ * 
+ * The cache is enabled by setting the system property {@value tut.pori.javadocer.ResponseCache#PROPERTY_CACHE_DIR}.
+ * 
+ * This class is thread-safe. Only the index of the entries is locked, the entry files are read and written concurrently.
+ */
+public class ResponseCache {
+	/** System property name used to define the cache directory, if not set, caching is disabled */
+	public static final String PROPERTY_CACHE_DIR = "tut.pori.javadocer.cache_dir";
+	/** System property name used to define the time in seconds cached entries are used without revalidating them with the server, default is 0 (always revalidate) */
+	public static final String PROPERTY_CACHE_MAX_AGE = "tut.pori.javadocer.cache_max_age";
+	/** System property name used to define the maximum size of the cache in bytes */
+	public static final String PROPERTY_CACHE_SIZE = "tut.pori.javadocer.cache_size";
+	private static final long DEFAULT_CACHE_SIZE = 104857600; // 100 MB
+	private static final String ENTRY_SUFFIX = ".entry";
+	private static final int ENTRY_VERSION = 1;
+	private static final Logger LOGGER = Logger.getLogger(ResponseCache.class);
+	private static final String TEMP_SUFFIX = ".tmp";
+	private File _directory = null;
+	private Map<String, Long> _entries = new LinkedHashMap<>(16, 0.75f, true); // key - entry size, in access order
+	private long _maxAge = 0;
+	private long _maxSize = DEFAULT_CACHE_SIZE;
+	private long _size = 0;
+
+	/**
+	 * A single cached entry
+	 * 
+	 */
+	public static class Entry {
+		private String _content = null;
+		private String _eTag = null;
+		private String _lastModified = null;
+		private long _stored = 0;
+
+		/**
+		 * 
+		 * @param content
+		 * @param eTag
+		 * @param lastModified
+		 * @param stored
+		 */
+		private Entry(String content, String eTag, String lastModified, long stored) {
+			_content = content;
+			_eTag = eTag;
+			_lastModified = lastModified;
+			_stored = stored;
+		}
+
+		/**
+		 * @return the rendered content
+		 */
+		public String getContent() {
+			return _content;
+		}
+
+		/**
+		 * @return the ETag returned by the server or null if none
+		 */
+		public String getETag() {
+			return _eTag;
+		}
+
+		/**
+		 * @return the Last-Modified value returned by the server or null if none
+		 */
+		public String getLastModified() {
+			return _lastModified;
+		}
+
+		/**
+		 * @return the time the content was stored or last revalidated in ms
+		 */
+		public long getStored() {
+			return _stored;
+		}
+	} // class Entry
+
+	/**
+	 * 
+	 * @param directory
+	 * @param maxSize maximum size of the cache in bytes
+	 * @param maxAge time in ms the entries are considered fresh without revalidation
+	 * @throws IllegalArgumentException on invalid directory
+	 */
+	public ResponseCache(File directory, long maxSize, long maxAge) throws IllegalArgumentException {
+		if(!directory.isDirectory() && !directory.mkdirs()){
+			throw new IllegalArgumentException("Invalid cache directory: "+directory.getAbsolutePath());
+		}
+		_directory = directory;
+		_maxSize = maxSize;
+		_maxAge = maxAge;
+
+		File[] files = directory.listFiles();
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				return Long.compare(o1.lastModified(), o2.lastModified());
+			}
+		}); // oldest first, the order of a fresh access ordered map
+		int removed = 0;
+		for(File file : files){
+			String name = file.getName();
+			if(!file.isFile()){
+				continue;
+			}else if(name.endsWith(ENTRY_SUFFIX)){
+				long length = file.length();
+				_entries.put(StringUtils.removeEnd(name, ENTRY_SUFFIX), length);
+				_size += length;
+			}else if(name.endsWith(TEMP_SUFFIX) && file.delete()){ // left behind by interrupted writes, a write in progress in another process fails to rename its file and skips the entry
+				++removed;
+			}
+		}
+		LOGGER.debug("Loaded "+_entries.size()+" cache entries, total size: "+_size+", removed temporary files: "+removed);
+		evict();
+	}
+
+	/**
+	 * 
+	 * @return cache configured using the system properties or null if caching is not enabled
+	 * @throws IllegalArgumentException on invalid configuration
+	 */
+	public static ResponseCache fromSystemProperties() throws IllegalArgumentException {
+		String directory = System.getProperty(PROPERTY_CACHE_DIR);
+		if(StringUtils.isBlank(directory)){
+			return null;
+		}
+		try{
+			long maxSize = Long.parseLong(System.getProperty(PROPERTY_CACHE_SIZE, String.valueOf(DEFAULT_CACHE_SIZE)));
+			long maxAge = Long.parseLong(System.getProperty(PROPERTY_CACHE_MAX_AGE, "0"))*1000;
+			return new ResponseCache(new File(directory), maxSize, maxAge);
+		} catch (NumberFormatException ex) {
+			LOGGER.error(ex, ex);
+			throw new IllegalArgumentException("Bad "+PROPERTY_CACHE_SIZE+" or "+PROPERTY_CACHE_MAX_AGE);
+		}
+	}
+
+	/**
+	 * 
+	 * @param type
+	 * @param uri
+	 * @param body request body or null if none
+	 * @return cache key for the given request
+	 */
+	public static String createKey(MethodType type, String uri, String body) {
+		StringBuilder key = new StringBuilder();
+		key.append(type.name());
+		key.append('\n');
+		key.append(uri);
+		key.append('\n');
+		if(body != null){
+			key.append(DigestUtils.sha256Hex(body));
+		}
+		return DigestUtils.sha256Hex(key.toString());
+	}
+
+	/**
+	 * 
+	 * @param entry
+	 * @return true if the entry can be used without revalidation
+	 */
+	public boolean isFresh(Entry entry) {
+		return (System.currentTimeMillis() - entry.getStored() < _maxAge);
+	}
+
+	/**
+	 * 
+	 * @param key
+	 * @return the cached entry or null if not found
+	 */
+	public Entry get(String key) {
+		synchronized (this) {
+			if(_entries.get(key) == null){ // also updates the access order
+				return null;
+			}
+		}
+		File file = getFile(key);
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+			if(in.readInt() != ENTRY_VERSION){
+				LOGGER.debug("Ignored entry with unsupported version: "+key);
+				synchronized (this) {
+					remove(key);
+				}
+				return null;
+			}
+			long stored = in.readLong();
+			String eTag = StringUtils.defaultIfEmpty(in.readUTF(), null);
+			String lastModified = StringUtils.defaultIfEmpty(in.readUTF(), null);
+			byte[] content = new byte[in.readInt()];
+			in.readFully(content);
+			file.setLastModified(System.currentTimeMillis()); // keep the access order over runs
+			return new Entry(new String(content, StandardCharsets.UTF_8), eTag, lastModified, stored);
+		} catch (FileNotFoundException ex) { // evicted or being replaced by another thread
+			LOGGER.debug(ex, ex);
+			return null;
+		} catch (IOException ex) {
+			LOGGER.warn("Removing invalid cache entry: "+file.getAbsolutePath(), ex);
+			synchronized (this) {
+				remove(key);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Add or replace the entry for the given key
+	 * 
+	 * @param key
+	 * @param content
+	 * @param eTag
+	 * @param lastModified
+	 */
+	public void put(String key, String content, String eTag, String lastModified) {
+		File temp = new File(_directory, key+"."+Thread.currentThread().getId()+TEMP_SUFFIX); // the same entry may be written by several threads
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))){
+			out.writeInt(ENTRY_VERSION);
+			out.writeLong(System.currentTimeMillis());
+			out.writeUTF(StringUtils.defaultString(eTag));
+			out.writeUTF(StringUtils.defaultString(lastModified));
+			byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} catch (IOException ex) {
+			LOGGER.warn("Failed to write cache entry: "+temp.getAbsolutePath(), ex);
+			temp.delete();
+			return;
+		}
+
+		synchronized (this) {
+			remove(key);
+			File file = getFile(key);
+			if(!temp.renameTo(file)){
+				LOGGER.warn("Failed to write cache entry: "+file.getAbsolutePath());
+				temp.delete();
+				return;
+			}
+			long length = file.length();
+			_entries.put(key, length);
+			_size += length;
+			evict();
+		}
+	}
+
+	/**
+	 * Remove the least recently used entries until the cache fits in the size limit
+	 */
+	private void evict() {
+		for(Iterator<Map.Entry<String, Long>> iter = _entries.entrySet().iterator(); _size > _maxSize && iter.hasNext();){
+			Map.Entry<String, Long> e = iter.next();
+			iter.remove();
+			_size -= e.getValue();
+			getFile(e.getKey()).delete();
+		}
+	}
+
+	/**
+	 * 
+	 * @param key
+	 */
+	private void remove(String key) {
+		Long length = _entries.remove(key);
+		if(length != null){
+			_size -= length;
+		}
+		getFile(key).delete();
+	}
+
+	/**
+	 * 
+	 * @param key
+	 * @return file for the given key
+	 */
+	private File getFile(String key) {
+		return new File(_directory, key+ENTRY_SUFFIX);
+	}
+}
@@ -17,23 +17,24 @@ package tut.pori.javadocer;
 
 import java.util.Map;
 
-import org.apache.commons.lang3.StringEscapeUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 
+import com.sun.javadoc.ClassDoc;
+import com.sun.javadoc.Doc;
+import com.sun.javadoc.FieldDoc;
+import com.sun.javadoc.ProgramElementDoc;
 import com.sun.javadoc.SourcePosition;
 import com.sun.javadoc.Tag;
 import com.sun.tools.doclets.Taglet;
 
 /**
- * Class Restlet is used for retrieving example XML queries by the Javadoc. This inline tag aims to help with maintenance of the documentation.
+ * Class Restlet is used for retrieving example XML and JSON queries by the Javadoc. This inline tag aims to help with maintenance of the documentation.
  *
  * For usage instructions, follow the Oracle's guide at <a href="http://docs.oracle.com/javase/7/docs/technotes/guides/javadoc/taglet/overview.html">Taglet Overview</a>.
  */
 public class Restlet implements Taglet {
 	/** The name of the tag. Use this name in your code as {&#64;NAME} */
     private static final String NAME = "doc.restlet";
-    private static final int STATUS_EXCEPTION = -1;
     private static final Logger LOGGER = Logger.getLogger(Restlet.class);
 	
     /**
@@ -98,22 +99,10 @@ public class Restlet implements Taglet {
      */
     @Override
 	public String toString(Tag tag) {
-    	String content = null;
-		try(Javadocer jdocer = new Javadocer()){
-			content = jdocer.retrieveContent(JavadocerParameters.parse(tag.text()));
-		}catch(Throwable ex){ // javadoc will not fail regardless of the exception, so manually abort
-			SourcePosition position = tag.position(); // for some reason, the position is somewhat of by a few lines, but at least it gives a hint of where to look for the error.
-			LOGGER.error("Aborting on exception. File: "+position.file().getAbsolutePath()+", line: "+position.line()+", column: "+position.column(), ex);
-			System.exit(STATUS_EXCEPTION);
-		}
-		if(StringUtils.isBlank(content)){
-			LOGGER.warn("Failed to retrieve content.");
-			return null;
-		}else{
-			return "<pre>"+StringEscapeUtils.escapeHtml4(content)+"</pre>"; // simply use pre tags to preserve any pretty print, we could also do more fine-tuned format, we could also print the request here as we know all parameters utilized
-		}
-    }
-    
+		SourcePosition position = tag.position(); // for some reason, the position is somewhat of by a few lines, but at least it gives a hint of where to look for the error.
+		return TagRenderer.render(tag.text(), position.file().getAbsolutePath()+":"+position.line()+":"+position.column(), new ModelSource(tag.holder()));
+	}
+
     /**
      * Not used when using inline tags.
      */
@@ -121,4 +110,60 @@ public class Restlet implements Taglet {
 	public String toString(Tag[] tags) {
     	return null;
     }
+
+	/**
+	 * Resolves the constant values from the javadoc model, in the context of the class documenting the tag
+	 * 
+	 */
+	private static class ModelSource implements ConstantResolver.Source {
+		private ClassDoc _context = null;
+
+		/**
+		 * 
+		 * @param holder the documentation containing the tag
+		 */
+		public ModelSource(Doc holder) {
+			if(holder instanceof ClassDoc){
+				_context = (ClassDoc) holder;
+			}else if(holder instanceof ProgramElementDoc){
+				_context = ((ProgramElementDoc) holder).containingClass();
+			} // else package or overview documentation, no class context
+		}
+
+		@Override
+		public String getQualifiedName(String className) {
+			ClassDoc classDoc = findClass(className);
+			return (classDoc == null ? null : classDoc.qualifiedName());
+		}
+
+		@Override
+		public Object getConstantValue(String qualifiedName, String fieldName) {
+			ClassDoc classDoc = findClass(qualifiedName);
+			if(classDoc == null){
+				return null;
+			}
+			for(FieldDoc field : classDoc.fields(false)){ // all declared fields regardless of the access modifiers
+				if(field.name().equals(fieldName)){
+					return field.constantValue();
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * 
+		 * @param className
+		 * @return the class found by the given name in the context class (the imports, the same package, or the fully qualified name) or null if not found
+		 */
+		private ClassDoc findClass(String className) {
+			if(_context == null){
+				return null;
+			}
+			ClassDoc classDoc = _context.findClass(className);
+			if(classDoc == null){
+				LOGGER.debug("Class not found by javadoc: "+className);
+			}
+			return classDoc;
+		}
+	} // class ModelSource
 }
@@ -0,0 +1,561 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Per-tag timings, byte counts and outcomes of a single run, and the report of the run.
+ * 
+ * A sample is started with {@link #begin(String, String)} for each tag, and the phases executed by the same thread are added to the sample until it is ended with {@link #end(Sample)}.
+ * The static methods do nothing if the calling thread has no sample, so the counters are cheap enough to be always enabled: the cost is a couple of {@link System#nanoTime()} calls and thread local lookups for each phase.
+ * The requests executed asynchronously (by other threads) are not included in the samples.
+ * 
+ * When the run ends, a summary with the percentiles of each phase, the throughput and the slowest tags is logged.
+ * The number of slowest tags listed is defined by the system property {@value tut.pori.javadocer.RunStatistics#PROPERTY_STATISTICS_SLOWEST}.
+ * If the system property {@value tut.pori.javadocer.RunStatistics#PROPERTY_STATISTICS_FILE} is set, the summary and all samples are also written to the given file as JSON.
+ * 
+ * This class is thread-safe.
+ */
+public class RunStatistics {
+	/** System property name used to define the file the statistics are written to as JSON, if not set, the statistics are only logged */
+	public static final String PROPERTY_STATISTICS_FILE = "tut.pori.javadocer.statistics_file";
+	/** System property name used to define the number of the slowest tags listed in the report, default is 10 */
+	public static final String PROPERTY_STATISTICS_SLOWEST = "tut.pori.javadocer.statistics_slowest";
+	private static final ThreadLocal<Sample> CURRENT = new ThreadLocal<>();
+	private static final Logger LOGGER = Logger.getLogger(RunStatistics.class);
+	private static final int[] PERCENTILES = {50, 90, 99};
+	private static RunStatistics _instance = null;
+	private File _file = null;
+	private ConcurrentLinkedQueue<Sample> _samples = new ConcurrentLinkedQueue<>();
+	private int _slowest = 10;
+
+	/**
+	 * The measured phases of a tag
+	 * 
+	 */
+	public enum Phase {
+		/** retrieval of the body content, including all phases of the body request */
+		BODY,
+		/** execution of the request until the response headers have been received, including the retries */
+		REQUEST,
+		/** reading and parsing of the response until the example content, or the end of the document if there is no example */
+		SCAN,
+		/** pretty printing of the content, the rest of the example content is read from the response while it is printed */
+		FORMAT,
+		/** HTML escaping of the content */
+		ESCAPE;
+
+		/**
+		 * 
+		 * @return the name used in the report
+		 */
+		public String toName() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	} // enum Phase
+
+	/**
+	 * The outcomes of a tag
+	 * 
+	 */
+	public enum Outcome {
+		/** the fragment was read from the prefetch store */
+		PREFETCHED,
+		/** the fragment was rendered by the daemon */
+		DAEMON,
+		/** the content was read from the snapshot archive */
+		REPLAYED,
+		/** the content was read from the response cache */
+		CACHE_HIT,
+		/** the server responded that the cached content was not modified */
+		REVALIDATED,
+		/** the content was not in the response cache */
+		CACHE_MISS,
+		/** the result of an identical request was used */
+		COALESCED,
+		/** the request was retried */
+		RETRIED,
+		/** a duplicate request was sent */
+		HEDGED,
+		/** the content could not be retrieved */
+		FAILED;
+
+		/**
+		 * 
+		 * @return the name used in the report
+		 */
+		public String toName() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	} // enum Outcome
+
+	/**
+	 * The measurements of a single tag. A sample is only modified by the thread that started it.
+	 * 
+	 */
+	public static class Sample {
+		private long _bytesRead = 0;
+		private long _bytesTransferred = 0;
+		private long _bytesWritten = 0;
+		private long _end = -1;
+		private Set<Outcome> _outcomes = EnumSet.noneOf(Outcome.class);
+		private String _position = null;
+		private long _start = 0;
+		private String _text = null;
+		private long[] _times = null;
+
+		/**
+		 * 
+		 * @param position
+		 * @param text
+		 */
+		private Sample(String position, String text) {
+			_position = position;
+			_text = text;
+			_times = new long[Phase.values().length];
+			Arrays.fill(_times, -1);
+			_start = System.nanoTime();
+		}
+
+		/**
+		 * @return the number of decoded response bytes read for the main request
+		 */
+		public long getBytesRead() {
+			return _bytesRead;
+		}
+
+		/**
+		 * @return the number of response bytes transferred for the main request, less than {@link #getBytesRead()} if the response was compressed
+		 */
+		public long getBytesTransferred() {
+			return _bytesTransferred;
+		}
+
+		/**
+		 * @return the number of characters of the HTML output
+		 */
+		public long getBytesWritten() {
+			return _bytesWritten;
+		}
+
+		/**
+		 * @return the total duration of the tag in ns
+		 */
+		public long getDuration() {
+			return _end-_start;
+		}
+
+		/**
+		 * @return the outcomes of the tag
+		 */
+		public Set<Outcome> getOutcomes() {
+			return Collections.unmodifiableSet(_outcomes);
+		}
+
+		/**
+		 * @return the source position of the tag or null if not known
+		 */
+		public String getPosition() {
+			return _position;
+		}
+
+		/**
+		 * @return the text of the tag
+		 */
+		public String getText() {
+			return _text;
+		}
+
+		/**
+		 * 
+		 * @param phase
+		 * @return the duration of the phase in ns or -1 if the phase was not executed
+		 */
+		public long getTime(Phase phase) {
+			return _times[phase.ordinal()];
+		}
+	} // class Sample
+
+	/**
+	 * 
+	 * @param file the file the statistics are written to or null if none
+	 * @param slowest the number of slowest tags listed in the report
+	 */
+	public RunStatistics(File file, int slowest) {
+		_file = file;
+		_slowest = slowest;
+	}
+
+	/**
+	 * Returns the statistics shared by the whole process. The instance is created on the first call and reported automatically on JVM shutdown.
+	 * 
+	 * @return the shared instance
+	 * @throws IllegalArgumentException on invalid configuration
+	 */
+	public static synchronized RunStatistics getInstance() throws IllegalArgumentException {
+		if(_instance == null){
+			String file = System.getProperty(PROPERTY_STATISTICS_FILE);
+			final RunStatistics statistics;
+			try{
+				statistics = new RunStatistics((StringUtils.isBlank(file) ? null : new File(file)), Integer.parseInt(System.getProperty(PROPERTY_STATISTICS_SLOWEST, "10")));
+			} catch (NumberFormatException ex) {
+				LOGGER.error(ex, ex);
+				throw new IllegalArgumentException("Bad "+PROPERTY_STATISTICS_SLOWEST);
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread("restlet-statistics"){
+				@Override
+				public void run() {
+					statistics.report();
+				}
+			});
+			_instance = statistics;
+		}
+		return _instance;
+	}
+
+	/**
+	 * Starts a new sample for the calling thread
+	 * 
+	 * @param position the source position of the tag or null if not known
+	 * @param text the text of the tag
+	 * @return the started sample
+	 */
+	public Sample begin(String position, String text) {
+		Sample sample = new Sample(position, text);
+		CURRENT.set(sample);
+		return sample;
+	}
+
+	/**
+	 * Ends the sample started by {@link #begin(String, String)}
+	 * 
+	 * @param sample
+	 */
+	public void end(Sample sample) {
+		sample._end = System.nanoTime();
+		CURRENT.remove();
+		_samples.add(sample);
+	}
+
+	/**
+	 * Detaches the sample of the calling thread, so that the following phases are not added to it, e.g. the phases of a nested request
+	 * 
+	 * @return the detached sample or null if none
+	 */
+	public static Sample suspend() {
+		Sample sample = CURRENT.get();
+		if(sample != null){
+			CURRENT.remove();
+		}
+		return sample;
+	}
+
+	/**
+	 * Attaches the sample detached by {@link #suspend()}, and adds the time elapsed since the given start time to the given phase
+	 * 
+	 * @param sample the detached sample, may be null
+	 * @param phase
+	 * @param start the start time of the phase as given by {@link System#nanoTime()}
+	 */
+	public static void resume(Sample sample, Phase phase, long start) {
+		if(sample != null){
+			CURRENT.set(sample);
+			addTime(phase, start);
+		}
+	}
+
+	/**
+	 * Adds the time elapsed since the given start time to the given phase of the sample of the calling thread
+	 * 
+	 * @param phase
+	 * @param start the start time of the phase as given by {@link System#nanoTime()}
+	 */
+	public static void addTime(Phase phase, long start) {
+		Sample sample = CURRENT.get();
+		if(sample != null){
+			long elapsed = System.nanoTime()-start;
+			int index = phase.ordinal();
+			sample._times[index] = (sample._times[index] < 0 ? elapsed : sample._times[index]+elapsed);
+		}
+	}
+
+	/**
+	 * 
+	 * @param outcome the outcome added to the sample of the calling thread
+	 */
+	public static void addOutcome(Outcome outcome) {
+		Sample sample = CURRENT.get();
+		if(sample != null){
+			sample._outcomes.add(outcome);
+		}
+	}
+
+	/**
+	 * Adds the given counts to the sample of the calling thread
+	 * 
+	 * @param transferred the number of response bytes transferred
+	 * @param decoded the number of response bytes read after decoding, the same as transferred if the response was not compressed
+	 */
+	public static void addBytesRead(long transferred, long decoded) {
+		Sample sample = CURRENT.get();
+		if(sample != null){
+			sample._bytesTransferred += transferred;
+			sample._bytesRead += decoded;
+		}
+	}
+
+	/**
+	 * 
+	 * @param bytes the number of characters written, added to the sample of the calling thread
+	 */
+	public static void addBytesWritten(long bytes) {
+		Sample sample = CURRENT.get();
+		if(sample != null){
+			sample._bytesWritten += bytes;
+		}
+	}
+
+	/**
+	 * 
+	 * @return all ended samples
+	 */
+	public List<Sample> getSamples() {
+		return new ArrayList<>(_samples);
+	}
+
+	/**
+	 * Logs the summary of the run, and writes the JSON report if enabled. Does nothing if there are no samples.
+	 */
+	public void report() {
+		List<Sample> samples = getSamples();
+		if(samples.isEmpty()){
+			return;
+		}
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		long bytesRead = 0;
+		long bytesTransferred = 0;
+		long bytesWritten = 0;
+		Map<Outcome, Integer> outcomes = new EnumMap<>(Outcome.class);
+		for(Sample sample : samples){
+			first = Math.min(first, sample._start);
+			last = Math.max(last, sample._end);
+			bytesRead += sample._bytesRead;
+			bytesTransferred += sample._bytesTransferred;
+			bytesWritten += sample._bytesWritten;
+			for(Outcome outcome : sample._outcomes){
+				Integer count = outcomes.get(outcome);
+				outcomes.put(outcome, (count == null ? 1 : count+1));
+			}
+		}
+		double seconds = Math.max(1, last-first)/1e9;
+
+		Map<Phase, long[]> phases = new EnumMap<>(Phase.class);
+		for(Phase phase : Phase.values()){
+			phases.put(phase, getSortedTimes(samples, phase));
+		}
+		long[] totals = getSortedTimes(samples, null);
+
+		Collections.sort(samples, new Comparator<Sample>() {
+			@Override
+			public int compare(Sample o1, Sample o2) {
+				return Long.compare(o2.getDuration(), o1.getDuration());
+			}
+		});
+		List<Sample> slowest = samples.subList(0, Math.min(_slowest, samples.size()));
+
+		StringBuilder summary = new StringBuilder();
+		summary.append("Tags: ").append(samples.size()).append(" in ").append(String.format("%.1f", seconds)).append(" s (").append(String.format("%.1f", samples.size()/seconds)).append(" tags/s), bytes read: ").append(bytesRead).append(" (transferred: ").append(bytesTransferred).append("), characters written: ").append(bytesWritten);
+		appendPhase(summary.append(System.lineSeparator()), "total", totals);
+		for(Map.Entry<Phase, long[]> e : phases.entrySet()){
+			appendPhase(summary.append(System.lineSeparator()), e.getKey().toName(), e.getValue());
+		}
+		summary.append(System.lineSeparator()).append("outcomes:");
+		for(Map.Entry<Outcome, Integer> e : outcomes.entrySet()){
+			summary.append(' ').append(e.getKey().toName()).append('=').append(e.getValue());
+		}
+		summary.append(System.lineSeparator()).append("slowest tags:");
+		for(Sample sample : slowest){
+			summary.append(System.lineSeparator()).append(String.format("%10.1f ms ", sample.getDuration()/1e6)).append(sample._position).append(": {@doc.restlet ").append(sample._text).append("} ").append(sample._outcomes);
+		}
+		LOGGER.info(summary.toString());
+
+		if(_file != null){
+			try {
+				FileUtils.writeStringToFile(_file, toJson(samples, seconds, bytesRead, bytesTransferred, bytesWritten, outcomes, totals, phases), StandardCharsets.UTF_8);
+			} catch (IOException ex) {
+				LOGGER.error("Failed to write the statistics: "+_file.getAbsolutePath(), ex);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param samples
+	 * @param phase the phase or null for the total durations
+	 * @return the sorted durations of the given phase in ns, the samples in which the phase was not executed are excluded
+	 */
+	private static long[] getSortedTimes(List<Sample> samples, Phase phase) {
+		long[] times = new long[samples.size()];
+		int count = 0;
+		for(Sample sample : samples){
+			long time = (phase == null ? sample.getDuration() : sample.getTime(phase));
+			if(time >= 0){
+				times[count++] = time;
+			}
+		}
+		times = Arrays.copyOf(times, count);
+		Arrays.sort(times);
+		return times;
+	}
+
+	/**
+	 * 
+	 * @param sorted
+	 * @param percentile
+	 * @return the value of the given percentile using the nearest-rank method
+	 */
+	private static long getPercentile(long[] sorted, int percentile) {
+		return sorted[Math.max(0, (int) Math.ceil(percentile/100.0*sorted.length)-1)];
+	}
+
+	/**
+	 * 
+	 * @param builder
+	 * @param name
+	 * @param sorted
+	 */
+	private static void appendPhase(StringBuilder builder, String name, long[] sorted) {
+		builder.append(String.format("%-8s count: %6d", name, sorted.length));
+		if(sorted.length < 1){
+			return;
+		}
+		long total = 0;
+		for(long time : sorted){
+			total += time;
+		}
+		builder.append(String.format(", total: %10.1f ms", total/1e6));
+		for(int percentile : PERCENTILES){
+			builder.append(String.format(", p%d: %8.2f ms", percentile, getPercentile(sorted, percentile)/1e6));
+		}
+		builder.append(String.format(", max: %8.2f ms", sorted[sorted.length-1]/1e6));
+	}
+
+	/**
+	 * 
+	 * @param samples the samples sorted by duration
+	 * @param seconds
+	 * @param bytesRead
+	 * @param bytesTransferred
+	 * @param bytesWritten
+	 * @param outcomes
+	 * @param totals
+	 * @param phases
+	 * @return the statistics as JSON, the durations are given in microseconds
+	 */
+	private static String toJson(List<Sample> samples, double seconds, long bytesRead, long bytesTransferred, long bytesWritten, Map<Outcome, Integer> outcomes, long[] totals, Map<Phase, long[]> phases) {
+		StringBuilder json = new StringBuilder(256*(samples.size()+1));
+		json.append("{\n\t\"tags\": ").append(samples.size())
+			.append(",\n\t\"seconds\": ").append(String.format(Locale.ROOT, "%.3f", seconds))
+			.append(",\n\t\"bytes_read\": ").append(bytesRead)
+			.append(",\n\t\"bytes_transferred\": ").append(bytesTransferred)
+			.append(",\n\t\"characters_written\": ").append(bytesWritten)
+			.append(",\n\t\"outcomes\": {");
+		String separator = "";
+		for(Map.Entry<Outcome, Integer> e : outcomes.entrySet()){
+			json.append(separator).append('"').append(e.getKey().toName()).append("\": ").append(e.getValue());
+			separator = ", ";
+		}
+		json.append("},\n\t\"phases\": {\n\t\t\"total\": ");
+		appendJson(json, totals);
+		for(Map.Entry<Phase, long[]> e : phases.entrySet()){
+			json.append(",\n\t\t\"").append(e.getKey().toName()).append("\": ");
+			appendJson(json, e.getValue());
+		}
+		json.append("\n\t},\n\t\"samples\": [");
+		separator = "\n\t\t";
+		for(Sample sample : samples){
+			json.append(separator).append("{\"position\": ");
+			if(sample._position == null){
+				json.append("null");
+			}else{
+				json.append('"').append(StringEscapeUtils.escapeJson(sample._position)).append('"');
+			}
+			json.append(", \"text\": \"").append(StringEscapeUtils.escapeJson(sample._text))
+				.append("\", \"total_us\": ").append(TimeUnit.NANOSECONDS.toMicros(sample.getDuration()));
+			for(Phase phase : Phase.values()){
+				long time = sample.getTime(phase);
+				if(time >= 0){
+					json.append(", \"").append(phase.toName()).append("_us\": ").append(TimeUnit.NANOSECONDS.toMicros(time));
+				}
+			}
+			json.append(", \"bytes_read\": ").append(sample._bytesRead)
+				.append(", \"bytes_transferred\": ").append(sample._bytesTransferred)
+				.append(", \"characters_written\": ").append(sample._bytesWritten)
+				.append(", \"outcomes\": [");
+			String outcomeSeparator = "";
+			for(Outcome outcome : sample._outcomes){
+				json.append(outcomeSeparator).append('"').append(outcome.toName()).append('"');
+				outcomeSeparator = ", ";
+			}
+			json.append("]}");
+			separator = ",\n\t\t";
+		}
+		json.append("\n\t]\n}\n");
+		return json.toString();
+	}
+
+	/**
+	 * 
+	 * @param json
+	 * @param sorted
+	 */
+	private static void appendJson(StringBuilder json, long[] sorted) {
+		json.append("{\"count\": ").append(sorted.length);
+		if(sorted.length > 0){
+			long total = 0;
+			for(long time : sorted){
+				total += time;
+			}
+			json.append(", \"total_us\": ").append(TimeUnit.NANOSECONDS.toMicros(total));
+			for(int percentile : PERCENTILES){
+				json.append(", \"p").append(percentile).append("_us\": ").append(TimeUnit.NANOSECONDS.toMicros(getPercentile(sorted, percentile)));
+			}
+			json.append(", \"max_us\": ").append(TimeUnit.NANOSECONDS.toMicros(sorted[sorted.length-1]));
+		}
+		json.append('}');
+	}
+}
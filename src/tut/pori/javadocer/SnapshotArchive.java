@@ -0,0 +1,452 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Archive of the exchanges made by {@link Javadocer}, used for building the documentation without access to the REST server.
+ * 
+ * In record mode, each retrieved request (the body content retrieved from the body uri, the request and the rendered content of the response) is appended to the archive, keyed by the normalized parameters (see {@link JavadocerParameters#toString()}).
+ * If the archive already exists, the new exchanges are added to it, replacing the exchanges with the same key. This allows multiple processes (e.g. {@link Prefetcher} and javadoc) to record to the same archive one after another.
+ * Delete the archive to record a fresh snapshot.
+ * 
+ * In replay mode, the archive is memory mapped and all content is served from it. The missing exchanges and the exchanges that were never used are reported when the archive is closed.
+ * 
+ * The archive consists of the exchanges, followed by an index of the keys and the offsets of the exchanges, and a trailer containing the offset of the index.
+ * 
+ * The mode is selected by the system property {@value tut.pori.javadocer.SnapshotArchive#PROPERTY_SNAPSHOT_MODE}. This class is thread-safe.
+ */
+public class SnapshotArchive implements Closeable {
+	/** System property name used to define the archive file */
+	public static final String PROPERTY_SNAPSHOT_FILE = "tut.pori.javadocer.snapshot_file";
+	/** System property name used to define the snapshot mode, record or replay, if not set, snapshots are not used */
+	public static final String PROPERTY_SNAPSHOT_MODE = "tut.pori.javadocer.snapshot_mode";
+	private static final Logger LOGGER = Logger.getLogger(SnapshotArchive.class);
+	private static final int MAGIC = 0x4a44534e;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8; // magic and version
+	private static final int TRAILER_SIZE = 12; // index offset and magic
+	private MappedByteBuffer _buffer = null; // replay mode only
+	private File _file = null;
+	private Map<String, Long> _index = null; // key - offset of the exchange
+	private Set<String> _missing = null;
+	private Mode _mode = null;
+	private DataOutputStream _output = null; // record mode only
+	private long _position = 0; // the position of the next exchange in record mode
+	private Set<String> _used = null;
+	private Map<Exchange, Long> _written = null; // exchange - offset, the exchanges written by this instance in record mode
+
+	/**
+	 * the snapshot mode
+	 * 
+	 */
+	public enum Mode {
+		/** the exchanges are written to the archive */
+		RECORD,
+		/** the exchanges are read from the archive */
+		REPLAY;
+
+		/**
+		 * 
+		 * @param value
+		 * @return the given value as Mode
+		 * @throws IllegalArgumentException
+		 */
+		public static Mode fromString(String value) throws IllegalArgumentException {
+			for(Mode m : Mode.values()){
+				if(m.name().equalsIgnoreCase(value)){
+					return m;
+				}
+			}
+			throw new IllegalArgumentException("Unknown mode: "+value);
+		}
+	} // enum Mode
+
+	/**
+	 * A single recorded exchange
+	 * 
+	 */
+	public static class Exchange {
+		private String _body = null;
+		private String _bodyUri = null;
+		private String _content = null;
+		private String _type = null;
+		private String _uri = null;
+
+		/**
+		 * 
+		 * @param type
+		 * @param uri
+		 * @param bodyUri
+		 * @param body
+		 * @param content
+		 */
+		public Exchange(String type, String uri, String bodyUri, String body, String content) {
+			_type = type;
+			_uri = uri;
+			_bodyUri = bodyUri;
+			_body = body;
+			_content = content;
+		}
+
+		/**
+		 * @return the body content sent with the request or null if none
+		 */
+		public String getBody() {
+			return _body;
+		}
+
+		/**
+		 * @return the uri the body content was retrieved from or null if none
+		 */
+		public String getBodyUri() {
+			return _bodyUri;
+		}
+
+		/**
+		 * @return the rendered content of the response
+		 */
+		public String getContent() {
+			return _content;
+		}
+
+		/**
+		 * @return the HTTP method type of the request
+		 */
+		public String getType() {
+			return _type;
+		}
+
+		/**
+		 * @return the uri of the request
+		 */
+		public String getUri() {
+			return _uri;
+		}
+	} // class Exchange
+
+	/**
+	 * 
+	 * @param file
+	 * @param mode
+	 * @throws IllegalArgumentException if the archive cannot be opened
+	 */
+	public SnapshotArchive(File file, Mode mode) throws IllegalArgumentException {
+		_file = file;
+		_mode = mode;
+		try{
+			if(mode == Mode.REPLAY){
+				openReplay();
+			}else{
+				openRecord();
+			}
+		} catch (IOException | BufferUnderflowException ex) {
+			LOGGER.error(ex, ex);
+			throw new IllegalArgumentException("Failed to open snapshot archive: "+file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * 
+	 * @return archive configured using the system properties or null if snapshots are not enabled
+	 * @throws IllegalArgumentException on invalid configuration
+	 */
+	public static SnapshotArchive fromSystemProperties() throws IllegalArgumentException {
+		String mode = System.getProperty(PROPERTY_SNAPSHOT_MODE);
+		if(StringUtils.isBlank(mode)){
+			return null;
+		}
+		String file = System.getProperty(PROPERTY_SNAPSHOT_FILE);
+		if(StringUtils.isBlank(file)){
+			throw new IllegalArgumentException("Bad "+PROPERTY_SNAPSHOT_FILE);
+		}
+		return new SnapshotArchive(new File(file), Mode.fromString(mode));
+	}
+
+	/**
+	 * 
+	 * @return the mode of this archive
+	 */
+	public Mode getMode() {
+		return _mode;
+	}
+
+	/**
+	 * Opens the archive for replay
+	 * 
+	 * @throws IOException
+	 */
+	private void openReplay() throws IOException {
+		try(RandomAccessFile file = new RandomAccessFile(_file, "r")){
+			long size = file.length();
+			if(size > Integer.MAX_VALUE){
+				throw new IOException("Archive is too large to be mapped: "+size);
+			}
+			_index = readIndex(file);
+			if(_index == null){
+				throw new IOException("Invalid or incomplete archive.");
+			}
+			_buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size); // the mapping stays valid after the file has been closed
+		}
+		_used = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		_missing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		LOGGER.debug("Replaying "+_index.size()+" exchanges from "+_file.getAbsolutePath());
+	}
+
+	/**
+	 * Opens the archive for recording, the existing exchanges are kept
+	 * 
+	 * @throws IOException
+	 */
+	private void openRecord() throws IOException {
+		_index = new LinkedHashMap<>();
+		_written = new IdentityHashMap<>();
+		_position = HEADER_SIZE;
+		if(_file.isFile()){
+			try(RandomAccessFile file = new RandomAccessFile(_file, "rw")){
+				Map<String, Long> index = readIndex(file);
+				if(index == null){
+					LOGGER.warn("Replacing invalid or incomplete archive: "+_file.getAbsolutePath());
+					file.setLength(0);
+				}else{
+					_index.putAll(index);
+					file.seek(file.length()-TRAILER_SIZE);
+					_position = file.readLong(); // the new exchanges replace the old index
+					file.setLength(_position);
+					LOGGER.debug("Appending to archive of "+index.size()+" exchanges: "+_file.getAbsolutePath());
+				}
+			}
+		}
+
+		_output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_file, true)));
+		if(_position == HEADER_SIZE && _file.length() == 0){
+			_output.writeInt(MAGIC);
+			_output.writeInt(VERSION);
+		}
+	}
+
+	/**
+	 * 
+	 * @param file
+	 * @return the index of the archive or null if the archive is not valid
+	 * @throws IOException
+	 */
+	private static Map<String, Long> readIndex(RandomAccessFile file) throws IOException {
+		long size = file.length();
+		if(size < HEADER_SIZE+TRAILER_SIZE || size > Integer.MAX_VALUE){
+			return null;
+		}
+		file.seek(0);
+		if(file.readInt() != MAGIC || file.readInt() != VERSION){
+			return null;
+		}
+		file.seek(size-TRAILER_SIZE);
+		long indexOffset = file.readLong();
+		if(file.readInt() != MAGIC || indexOffset < HEADER_SIZE || indexOffset > size-TRAILER_SIZE){
+			return null;
+		}
+		byte[] bytes = new byte[(int) (size-TRAILER_SIZE-indexOffset)]; // the index is read to the heap, so that the file is not mapped when it is truncated for appending
+		file.seek(indexOffset);
+		file.readFully(bytes);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		try{
+			int count = buffer.getInt();
+			Map<String, Long> index = new HashMap<>(count*2);
+			for(int i=0;i<count;++i){
+				String key = readString(buffer);
+				index.put(key, buffer.getLong());
+			}
+			return index;
+		} catch (BufferUnderflowException | IllegalArgumentException ex) {
+			LOGGER.debug(ex, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * The same exchange (instance) recorded under several keys is written only once.
+	 * 
+	 * @param key the normalized parameters
+	 * @param exchange
+	 * @throws IllegalStateException if the archive is not in record mode or has been closed
+	 */
+	public synchronized void record(String key, Exchange exchange) throws IllegalStateException {
+		if(_output == null){
+			throw new IllegalStateException("The archive is not open for recording.");
+		}
+		Long written = _written.get(exchange);
+		if(written != null){
+			if(!written.equals(_index.get(key))){
+				_index.remove(key);
+				_index.put(key, written);
+			}
+			return;
+		}
+		long position = _position;
+		try {
+			_position += writeString(_output, exchange.getType());
+			_position += writeString(_output, exchange.getUri());
+			_position += writeString(_output, exchange.getBodyUri());
+			_position += writeString(_output, exchange.getBody());
+			_position += writeString(_output, exchange.getContent());
+		} catch (IOException ex) {
+			LOGGER.error(ex, ex);
+			throw new IllegalStateException("Failed to write snapshot archive: "+_file.getAbsolutePath());
+		}
+		_index.remove(key); // keep the index in recording order
+		_index.put(key, position);
+		_written.put(exchange, position);
+	}
+
+	/**
+	 * 
+	 * @param key the normalized parameters
+	 * @return the exchange or null if not found, in which case the key is reported as missing
+	 * @throws IllegalStateException if the archive is not in replay mode
+	 */
+	public Exchange replay(String key) throws IllegalStateException {
+		if(_buffer == null){
+			throw new IllegalStateException("The archive is not open for replay.");
+		}
+		Long offset = _index.get(key);
+		if(offset == null){
+			_missing.add(key);
+			return null;
+		}
+		_used.add(key);
+		ByteBuffer buffer = _buffer.duplicate(); // separate position for each thread
+		buffer.position(offset.intValue());
+		return new Exchange(readString(buffer), readString(buffer), readString(buffer), readString(buffer), readString(buffer));
+	}
+
+	/**
+	 * 
+	 * @param out
+	 * @param value
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	private static int writeString(DataOutputStream out, String value) throws IOException {
+		if(value == null){
+			out.writeInt(-1);
+			return 4;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		return 4+bytes.length;
+	}
+
+	/**
+	 * 
+	 * @param buffer
+	 * @return the string at the current position of the buffer
+	 * @throws IllegalArgumentException on invalid length
+	 */
+	private static String readString(ByteBuffer buffer) throws IllegalArgumentException {
+		int length = buffer.getInt();
+		if(length < 0){
+			return null;
+		}else if(length > buffer.remaining()){
+			throw new IllegalArgumentException("Invalid string length: "+length);
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 
+	 * @return the keys which were requested in replay mode, but were not found in the archive
+	 */
+	public List<String> getMissing() {
+		return (_missing == null ? new ArrayList<String>(0) : new ArrayList<>(_missing));
+	}
+
+	/**
+	 * 
+	 * @return the keys of the archive which were not requested in replay mode
+	 */
+	public synchronized List<String> getUnused() {
+		List<String> unused = new ArrayList<>();
+		if(_used != null){
+			for(String key : _index.keySet()){
+				if(!_used.contains(key)){
+					unused.add(key);
+				}
+			}
+		}
+		return unused;
+	}
+
+	/**
+	 * In record mode, writes the index. In replay mode, reports the missing and unused exchanges.
+	 */
+	@Override
+	public synchronized void close() {
+		if(_output != null){
+			try {
+				_output.writeInt(_index.size());
+				for(Map.Entry<String, Long> e : _index.entrySet()){
+					writeString(_output, e.getKey());
+					_output.writeLong(e.getValue());
+				}
+				_output.writeLong(_position);
+				_output.writeInt(MAGIC);
+				_output.close();
+				LOGGER.info("Recorded "+_index.size()+" exchanges to "+_file.getAbsolutePath());
+			} catch (IOException ex) {
+				LOGGER.error("Failed to write snapshot archive: "+_file.getAbsolutePath(), ex);
+			}
+			_output = null;
+		}else if(_buffer != null){
+			List<String> missing = getMissing();
+			if(!missing.isEmpty()){
+				LOGGER.warn(missing.size()+" tags missing from the snapshot:"+System.lineSeparator()+StringUtils.join(missing, System.lineSeparator()));
+			}
+			List<String> unused = getUnused();
+			if(!unused.isEmpty()){
+				LOGGER.warn(unused.size()+" snapshot entries were never used:"+System.lineSeparator()+StringUtils.join(unused, System.lineSeparator()));
+			}
+			LOGGER.info("Replayed "+_used.size()+" of "+_index.size()+" exchanges, missing: "+missing.size());
+			_buffer = null;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Renders the {&#64;doc.restlet} tags for the taglets, independently of the taglet API of the javadoc.
+ * 
+ * The tag is looked up from the fragments of {@link Prefetcher}, then rendered by {@link RenderDaemon} if it is running, and finally retrieved in-process using the shared {@link Javadocer} instance.
+ * The failures are counted by {@link FailureBudget}, and the javadoc is aborted when the budget is exceeded. The timings are recorded by {@link RunStatistics}.
+ * 
+ * This class is thread-safe. The state is shared by the whole javadoc run, so that {@link Restlet} and the taglet of the newer javadoc API can be used interchangeably.
+ */
+public final class TagRenderer {
+	private static final Logger LOGGER = Logger.getLogger(TagRenderer.class);
+	private static final int STATUS_EXCEPTION = -1;
+	private static RenderDaemon.Client _daemon = null;
+	private static boolean _daemonChecked = false;
+	private static FailureBudget _failureBudget = null;
+	private static FragmentStore _prefetched = null;
+	private static HtmlRenderer _renderer = null;
+
+	/**
+	 * 
+	 */
+	private TagRenderer(){
+		// nothing needed
+	}
+
+	/**
+	 * 
+	 * @param tagText the text of the tag as given by the javadoc
+	 * @param position the source position of the tag, e.g. file:line:column, or null if not known
+	 * @param source the source for the constant values known by the javadoc, may be null
+	 * @return The output formatted as HTML or null if there is no content
+	 */
+	public static String render(String tagText, String position, ConstantResolver.Source source) {
+		RunStatistics.Sample sample = RunStatistics.getInstance().begin(position, tagText); // the statistics are reported on exit
+		try{
+			return toHtml(tagText, sample.getPosition(), source);
+		}finally{
+			RunStatistics.getInstance().end(sample);
+		}
+	}
+
+	/**
+	 * 
+	 * @param tagText
+	 * @param location the source position of the tag
+	 * @param source
+	 * @return The output formatted as HTML.
+	 */
+	private static String toHtml(String tagText, String location, ConstantResolver.Source source) {
+		String html = getPrefetched().get(tagText); // already rendered, no need to parse the tag
+		if(html != null){
+			RunStatistics.addOutcome(RunStatistics.Outcome.PREFETCHED);
+			RunStatistics.addBytesWritten(html.length());
+			return html;
+		}
+
+		String content = null;
+		JavadocerParameters params = null;
+		try{
+			RenderDaemon.Response response = renderInDaemon(tagText);
+			if(response != null && response.getStatus() == RenderDaemon.Status.OK){
+				RunStatistics.addOutcome(RunStatistics.Outcome.DAEMON);
+				html = response.getContent();
+				if(html.isEmpty()){
+					LOGGER.warn("Failed to retrieve content.");
+					return null;
+				}
+				RunStatistics.addBytesWritten(html.length());
+				return html;
+			}else if(response != null && response.getStatus() == RenderDaemon.Status.FAILED){
+				throw new IllegalArgumentException(response.getContent());
+			} // else the daemon is not used or could not parse the tag, e.g. the constants are only known by the javadoc
+
+			params = JavadocerParameters.parse(tagText, source); // constants known by the javadoc do not require the compiled classes
+			if(params == null){
+				throw new IllegalArgumentException("No parameters in: "+tagText);
+			}
+			content = Javadocer.getInstance().retrieveContent(params); // the shared instance is closed on exit
+		}catch(Throwable ex){ // javadoc will not fail regardless of the exception, so manually abort when the failure budget is exceeded
+			RunStatistics.addOutcome(RunStatistics.Outcome.FAILED);
+			if(!getFailureBudget().add(location, tagText, ex)){
+				LOGGER.error("Aborting on exception, failure budget exceeded: "+location, ex);
+				System.exit(STATUS_EXCEPTION);
+			}
+			LOGGER.error("Failed to retrieve content: "+location, ex);
+			return HtmlEscapingWriter.toPreformatted("Failed to retrieve content: "+ex.getMessage());
+		}
+		if(StringUtils.isBlank(content)){
+			LOGGER.warn("Failed to retrieve content.");
+			return null;
+		}else{
+			long started = System.nanoTime();
+			html = getRenderer().render(params, content); // by default, simply use pre tags to preserve any pretty print
+			RunStatistics.addTime(RunStatistics.Phase.ESCAPE, started);
+			RunStatistics.addBytesWritten(html.length());
+			return html;
+		}
+	}
+
+	/**
+	 * 
+	 * @param tagText
+	 * @return the response of the daemon or null if the daemon is not used
+	 */
+	private static synchronized RenderDaemon.Response renderInDaemon(String tagText) {
+		if(!_daemonChecked){
+			_daemon = RenderDaemon.Client.fromSystemProperties(); // null if not configured or not running
+			_daemonChecked = true;
+		}
+		if(_daemon == null){
+			return null;
+		}
+		try {
+			return _daemon.render(tagText);
+		} catch (IOException ex) {
+			LOGGER.warn("Daemon connection failed, rendering in-process.", ex);
+			_daemon.close();
+			_daemon = null;
+			return null;
+		}
+	}
+
+	/**
+	 * 
+	 * @return the failure budget of this run, created on the first call, all failures are listed on exit
+	 */
+	private static synchronized FailureBudget getFailureBudget() {
+		if(_failureBudget == null){
+			final FailureBudget budget = FailureBudget.fromSystemProperties();
+			Runtime.getRuntime().addShutdownHook(new Thread("restlet-failures"){
+				@Override
+				public void run() {
+					List<String> failures = budget.getFailures();
+					if(!failures.isEmpty()){
+						LOGGER.error(failures.size()+" tags failed:"+System.lineSeparator()+StringUtils.join(failures, System.lineSeparator()));
+					}
+				}
+			});
+			_failureBudget = budget;
+		}
+		return _failureBudget;
+	}
+
+	/**
+	 * 
+	 * @return the fragments rendered by {@link Prefetcher}, opened on the first call
+	 */
+	private static synchronized FragmentStore getPrefetched() {
+		if(_prefetched == null){
+			_prefetched = FragmentStore.fromSystemProperties();
+		}
+		return _prefetched;
+	}
+
+	/**
+	 * 
+	 * @return the renderer configured by the system properties, created on the first call
+	 */
+	private static synchronized HtmlRenderer getRenderer() {
+		if(_renderer == null){
+			_renderer = HtmlRenderer.fromSystemProperties();
+		}
+		return _renderer;
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Creates the threads which execute the requests as virtual threads, when the JVM supports them (Java 21 or later).
+ * 
+ * The requests mostly wait for the network, so a virtual thread blocked on a request does not tie up a platform thread, and the threads are cheap to create. The virtual threads are always daemon threads.
+ * The virtual threads are used by default, the system property {@value tut.pori.javadocer.VirtualThreads#PROPERTY_VIRTUAL_THREADS} can be set to false to use platform threads instead.
+ * 
+ * The API of the virtual threads is used by reflection, so that this class can be compiled and run on older Java versions. This class is thread-safe.
+ */
+public final class VirtualThreads {
+	/** System property name used to define whether virtual threads are used when supported by the JVM, default is true */
+	public static final String PROPERTY_VIRTUAL_THREADS = "tut.pori.javadocer.virtual_threads";
+	private static final Method FACTORY; // Thread.Builder#factory(), null if not supported
+	private static final Logger LOGGER = Logger.getLogger(VirtualThreads.class);
+	private static final Method NAME; // Thread.Builder#name(String, long)
+	private static final Method OF_VIRTUAL; // Thread#ofVirtual()
+	static{
+		Method factory = null;
+		Method name = null;
+		Method ofVirtual = null;
+		try{
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+			ofVirtual.invoke(null); // preview in Java 19 and 20, fails unless enabled
+		} catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException ex) {
+			LOGGER.debug("Virtual threads are not supported.");
+			factory = null;
+		} catch (InvocationTargetException ex) {
+			LOGGER.debug("Virtual threads are not enabled.", ex.getCause());
+			factory = null;
+		}
+		FACTORY = factory;
+		NAME = name;
+		OF_VIRTUAL = ofVirtual;
+	}
+
+	/**
+	 * 
+	 */
+	private VirtualThreads(){
+		// nothing needed
+	}
+
+	/**
+	 * 
+	 * @return true if the virtual threads are supported by the JVM and not disabled by the system property
+	 */
+	public static boolean isEnabled() {
+		return (FACTORY != null && Boolean.parseBoolean(System.getProperty(PROPERTY_VIRTUAL_THREADS, "true")));
+	}
+
+	/**
+	 * 
+	 * @param namePrefix the prefix of the thread names, followed by a counter
+	 * @param fallback the factory used when the virtual threads are not enabled
+	 * @return factory for virtual threads or the fallback
+	 */
+	public static ThreadFactory getFactory(String namePrefix, ThreadFactory fallback) {
+		if(!isEnabled()){
+			return fallback;
+		}
+		try {
+			return (ThreadFactory) FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, Long.valueOf(1)));
+		} catch (IllegalAccessException | InvocationTargetException ex) { // checked on load, should not happen
+			LOGGER.warn("Failed to create virtual threads, using platform threads.", ex);
+			return fallback;
+		}
+	}
+}
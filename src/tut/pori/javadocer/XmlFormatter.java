@@ -0,0 +1,817 @@
+/**
+ * Copyright 2015 Tampere University of Technology, Pori Department
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tut.pori.javadocer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Single-pass pretty printer for XML content.
+ * 
+ * Reads the content with a StAX stream reader and writes it directly to the given writer, dropping whitespace-only text and indenting the elements by {@value tut.pori.javadocer.XmlFormatter#INDENT_AMOUNT} spaces.
+ * The output matches the output of an identity transformer with indentation enabled (applied on a non-namespace aware DOM from which the whitespace-only text nodes have been removed):
+ * <ul>
+ * 	<li>the XML declaration is always printed, followed by a line break</li>
+ * 	<li>the attributes are printed in alphabetical order</li>
+ * 	<li>elements without content are printed as empty-element tags</li>
+ * 	<li>text content is never modified, and elements following text on the same level are not indented</li>
+ * </ul>
+ * 
+ * The output can be truncated by limiting the number of child elements printed for each element, and the depth of the printed elements. The omitted elements are still read through,
+ * and each element with omitted content is closed with a comment of the form &lt;!-- N elements omitted --&gt;.
+ * 
+ * The content can also be printed as highlighted HTML, in which case the markup of the output is wrapped in &lt;span&gt; elements while it is printed, see {@link HtmlRenderer}.
+ * 
+ * The memory use does not depend on the size of the content. The instances are not thread-safe.
+ */
+public class XmlFormatter {
+	/** number of spaces used for indentation */
+	public static final int INDENT_AMOUNT = 2;
+	/** value for the limits of the printed elements, for printing all elements */
+	public static final int NO_LIMIT = -1;
+	/** sorts the attributes (name, value) by name in the same way as DOM does, namespace declarations are printed first */
+	private static final Comparator<String[]> ATTRIBUTE_ORDER = new Comparator<String[]>() {
+		@Override
+		public int compare(String[] o1, String[] o2) {
+			boolean namespace1 = isNamespaceDeclaration(o1[0]);
+			if(namespace1 != isNamespaceDeclaration(o2[0])){
+				return (namespace1 ? -1 : 1);
+			}
+			return o1[0].compareTo(o2[0]);
+		}
+	};
+	private static final Logger LOGGER = Logger.getLogger(XmlFormatter.class);
+	private static final String PROPERTY_REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+	private static final String DEFAULT_ENCODING = "UTF-8";
+	private static final String DEFAULT_VERSION = "1.0";
+	private XMLInputFactory _factory = null;
+	private String _lineSeparator = System.lineSeparator();
+
+	/**
+	 * 
+	 */
+	public XmlFormatter() {
+		_factory = XMLInputFactory.newInstance();
+		_factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE); // print the names as they are in the source
+		_factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+		if(_factory.isPropertySupported(PROPERTY_REPORT_CDATA)){
+			_factory.setProperty(PROPERTY_REPORT_CDATA, Boolean.TRUE);
+		}else{
+			LOGGER.debug("CDATA sections will be printed as text.");
+		}
+	}
+
+	/**
+	 * 
+	 * @param in
+	 * @return new reader for the given stream
+	 * @throws XMLStreamException
+	 */
+	public XMLStreamReader createReader(InputStream in) throws XMLStreamException {
+		return _factory.createXMLStreamReader(in);
+	}
+
+	/**
+	 * 
+	 * @param in
+	 * @return new reader for the given characters
+	 * @throws XMLStreamException
+	 */
+	public XMLStreamReader createReader(Reader in) throws XMLStreamException {
+		return _factory.createXMLStreamReader(in);
+	}
+
+	/**
+	 * Formats the whole document
+	 * 
+	 * @param reader the reader positioned at the start of the document
+	 * @param writer
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	public void formatDocument(XMLStreamReader reader, Writer writer) throws XMLStreamException, IOException {
+		formatDocument(reader, writer, NO_LIMIT, NO_LIMIT);
+	}
+
+	/**
+	 * Formats the whole document
+	 * 
+	 * @param reader the reader positioned at the start of the document
+	 * @param writer
+	 * @param maxChildren the maximum number of child elements printed for each element, less than 1 for no limit
+	 * @param maxDepth the maximum depth of the printed elements, the root element being on depth 1, less than 1 for no limit
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	public void formatDocument(XMLStreamReader reader, Writer writer, int maxChildren, int maxDepth) throws XMLStreamException, IOException {
+		formatDocument(reader, writer, null, maxChildren, maxDepth);
+	}
+
+	/**
+	 * Formats the whole document as highlighted HTML. Formatting is idempotent, so the text of formatted content is not changed.
+	 * 
+	 * @param reader the reader positioned at the start of the document
+	 * @param writer
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	public void highlightDocument(XMLStreamReader reader, HtmlEscapingWriter writer) throws XMLStreamException, IOException {
+		formatDocument(reader, writer, writer, NO_LIMIT, NO_LIMIT);
+	}
+
+	/**
+	 * 
+	 * @param reader the reader positioned at the start of the document
+	 * @param writer
+	 * @param html the writer for the highlighting, or null if the output is not highlighted
+	 * @param maxChildren
+	 * @param maxDepth
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	private void formatDocument(XMLStreamReader reader, Writer writer, HtmlEscapingWriter html, int maxChildren, int maxDepth) throws XMLStreamException, IOException {
+		if(reader.getEventType() != XMLStreamConstants.START_DOCUMENT){
+			throw new IllegalStateException("The reader is not at the start of the document.");
+		}
+		String encoding = StringUtils.defaultIfBlank(reader.getEncoding(), StringUtils.defaultIfBlank(reader.getCharacterEncodingScheme(), DEFAULT_ENCODING)); // the encoding is not known when reading characters
+		Printer printer = new Printer(writer, html, encoding, maxChildren, maxDepth);
+		printer.declaration(StringUtils.defaultIfBlank(reader.getVersion(), DEFAULT_VERSION), encoding, (reader.standaloneSet() && reader.isStandalone()));
+		while(reader.hasNext()){
+			printer.print(reader, reader.next());
+		}
+		printer.end();
+	}
+
+	/**
+	 * Formats the element and its content as a new document
+	 * 
+	 * @param reader the reader positioned at the start of the element, on return the reader is positioned at the end of the element
+	 * @param writer
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	public void formatElement(XMLStreamReader reader, Writer writer) throws XMLStreamException, IOException {
+		formatElement(reader, writer, NO_LIMIT, NO_LIMIT);
+	}
+
+	/**
+	 * Formats the element and its content as a new document
+	 * 
+	 * @param reader the reader positioned at the start of the element, on return the reader is positioned at the end of the element
+	 * @param writer
+	 * @param maxChildren the maximum number of child elements printed for each element, less than 1 for no limit
+	 * @param maxDepth the maximum depth of the printed elements, the given element being on depth 1, less than 1 for no limit
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	public void formatElement(XMLStreamReader reader, Writer writer, int maxChildren, int maxDepth) throws XMLStreamException, IOException {
+		if(reader.getEventType() != XMLStreamConstants.START_ELEMENT){
+			throw new IllegalStateException("The reader is not at the start of an element.");
+		}
+		Printer printer = new Printer(writer, null, DEFAULT_ENCODING, maxChildren, maxDepth);
+		printer.declaration(DEFAULT_VERSION, DEFAULT_ENCODING, true);
+		printer.print(reader, XMLStreamConstants.START_ELEMENT);
+		while(printer.getDepth() > 0){
+			printer.print(reader, reader.next());
+		}
+		printer.end();
+	}
+
+	/**
+	 * 
+	 * @param reader
+	 * @param index
+	 * @return qualified name of the attribute
+	 */
+	private static String getAttributeName(XMLStreamReader reader, int index) {
+		String prefix = reader.getAttributePrefix(index);
+		String localName = reader.getAttributeLocalName(index);
+		return (StringUtils.isEmpty(prefix) ? localName : prefix+':'+localName);
+	}
+
+	/**
+	 * 
+	 * @param name
+	 * @return true if the attribute name is a namespace declaration
+	 */
+	private static boolean isNamespaceDeclaration(String name) {
+		return (name.equals(XMLConstants.XMLNS_ATTRIBUTE) || name.startsWith(XMLConstants.XMLNS_ATTRIBUTE+':'));
+	}
+
+	/**
+	 * 
+	 * @param c
+	 * @return true if the character is whitespace as defined by XPath normalize-space()
+	 */
+	private static boolean isWhiteSpace(char c) {
+		return (c == ' ' || c == '\t' || c == '\r' || c == '\n');
+	}
+
+	/**
+	 * Output state of a single formatting call
+	 * 
+	 */
+	private class Printer {
+		private int[] _children = new int[16]; // the number of child elements read for each open element, index 0 is the document
+		private int _depth = 0;
+		private CharsetEncoder _encoder = null; // null if all characters can be printed as-is
+		private char _highSurrogate = 0; // the first character of a surrogate pair, or 0 if none
+		private HtmlEscapingWriter _html = null; // null if the output is not highlighted
+		private boolean _inText = false; // true if the current run of text and CDATA sections has non-whitespace content, and it is printed directly
+		private int _maxChildren = NO_LIMIT;
+		private int _maxDepth = NO_LIMIT;
+		private List<Declaration> _namespaces = new ArrayList<>(); // the namespace declarations in scope
+		private List<StringBuilder> _pending = new ArrayList<>(); // the text and the CDATA sections of the current run, while the run consists of whitespace only
+		private BitSet _pendingCdata = new BitSet(); // true for each pending CDATA section
+		private boolean _pendingText = false; // true if the pending run contains text, in which case XPath sees the run as a text node
+		private boolean _preserve = false; // true after non-whitespace text or a CDATA section, until the next element, the following markup is not indented
+		private boolean _prevText = false; // true if text has been printed after the last tag
+		private int _skipped = 0; // the depth inside the omitted element being read, 0 if none
+		private boolean _startTagOpen = false;
+		private boolean _textOpen = false; // true if the printed text continues with the next text event
+		private Writer _writer = null;
+
+		/**
+		 * 
+		 * @param writer
+		 * @param html the writer for the highlighting, or null if the output is not highlighted
+		 * @param encoding
+		 * @param maxChildren
+		 * @param maxDepth
+		 */
+		public Printer(Writer writer, HtmlEscapingWriter html, String encoding, int maxChildren, int maxDepth) {
+			_writer = writer;
+			_html = html;
+			_maxChildren = maxChildren;
+			_maxDepth = maxDepth;
+			_namespaces.add(new Declaration(-1, XMLConstants.XMLNS_ATTRIBUTE, XMLConstants.NULL_NS_URI));
+			if(!StringUtils.startsWithIgnoreCase(encoding, "UTF")){
+				try{
+					_encoder = Charset.forName(encoding).newEncoder();
+				} catch (IllegalArgumentException ex) {
+					LOGGER.debug("Unsupported encoding: "+encoding, ex);
+				}
+			}
+		}
+
+		/**
+		 * 
+		 * @return current element depth, including the omitted elements being read
+		 */
+		public int getDepth() {
+			return _depth+_skipped;
+		}
+
+		/**
+		 * 
+		 * @param version
+		 * @param encoding
+		 * @param standalone
+		 * @throws IOException
+		 */
+		public void declaration(String version, String encoding, boolean standalone) throws IOException {
+			startSpan(HtmlRenderer.CLASS_COMMENT);
+			_writer.write("<?xml version=\"");
+			_writer.write(version);
+			_writer.write("\" encoding=\"");
+			_writer.write(encoding);
+			_writer.write(standalone ? "\" standalone=\"yes\"?>" : "\" standalone=\"no\"?>");
+			endSpan();
+			_writer.write(_lineSeparator);
+		}
+
+		/**
+		 * 
+		 * @param reader
+		 * @param event the current event of the reader
+		 * @throws IOException
+		 */
+		public void print(XMLStreamReader reader, int event) throws IOException {
+			if(_skipped > 0){ // nothing inside an omitted element is printed
+				if(event == XMLStreamConstants.START_ELEMENT){
+					++_skipped;
+				}else if(event == XMLStreamConstants.END_ELEMENT){
+					--_skipped;
+				}
+				return;
+			}
+			switch(event){
+				case XMLStreamConstants.START_ELEMENT:
+					endText();
+					if(nextChild()){
+						startElement(reader);
+					}else{
+						++_skipped;
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					endText();
+					int omitted = getOmittedCount();
+					if(omitted > 0){
+						markup("<!-- ", omitted+(omitted == 1 ? " element omitted" : " elements omitted"), " -->");
+					}
+					endElement(reader);
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.SPACE:
+					text(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+					break;
+				case XMLStreamConstants.CDATA:
+					cdata(reader.getText());
+					break;
+				case XMLStreamConstants.COMMENT:
+					endText();
+					markup("<!--", reader.getText(), "-->");
+					break;
+				case XMLStreamConstants.PROCESSING_INSTRUCTION:
+					endText();
+					String data = reader.getPIData();
+					markup("<?", (StringUtils.isEmpty(data) ? reader.getPITarget() : reader.getPITarget()+' '+data), "?>");
+					break;
+				default: // ignore DTD, entity references and document events
+					break;
+			}
+		}
+
+		/**
+		 * Print the final line break
+		 * 
+		 * @throws IOException
+		 */
+		public void end() throws IOException {
+			endText();
+			_writer.write(_lineSeparator);
+		}
+
+		/**
+		 * Counts the started element as a child of the current element
+		 * 
+		 * @return true if the element should be printed, false if it is omitted
+		 */
+		private boolean nextChild() {
+			int count = ++_children[_depth];
+			return !((_maxDepth > 0 && _depth >= _maxDepth) || (_maxChildren > 0 && count > _maxChildren));
+		}
+
+		/**
+		 * 
+		 * @return the number of omitted child elements of the current element
+		 */
+		private int getOmittedCount() {
+			int count = _children[_depth];
+			if(_maxDepth > 0 && _depth >= _maxDepth){
+				return count;
+			}else if(_maxChildren > 0 && count > _maxChildren){
+				return count-_maxChildren;
+			}else{
+				return 0;
+			}
+		}
+
+		/**
+		 * 
+		 * @param reader
+		 * @throws IOException
+		 */
+		private void startElement(XMLStreamReader reader) throws IOException {
+			closeStartTag();
+			_preserve = false;
+			if(shouldIndent()){
+				indent(_depth);
+			}
+			startSpan(HtmlRenderer.CLASS_TAG);
+			_writer.write('<');
+			_writer.write(reader.getLocalName()); // without namespace awareness this is the qualified name
+			endSpan();
+			int count = reader.getAttributeCount();
+			if(count == 1){
+				attribute(getAttributeName(reader, 0), reader.getAttributeValue(0));
+			}else if(count > 1){
+				List<String[]> attributes = new ArrayList<>(count);
+				for(int i=0;i<count;++i){
+					attributes.add(new String[]{getAttributeName(reader, i), reader.getAttributeValue(i)});
+				}
+				Collections.sort(attributes, ATTRIBUTE_ORDER);
+				for(String[] attribute : attributes){
+					attribute(attribute[0], attribute[1]);
+				}
+			}
+			_startTagOpen = true;
+			_prevText = false;
+			++_depth;
+			if(_depth == _children.length){
+				_children = Arrays.copyOf(_children, 2*_depth);
+			}
+			_children[_depth] = 0;
+		}
+
+		/**
+		 * 
+		 * @param reader
+		 * @throws IOException
+		 */
+		private void endElement(XMLStreamReader reader) throws IOException {
+			if(_startTagOpen){
+				startSpan(HtmlRenderer.CLASS_TAG);
+				_writer.write("/>");
+				endSpan();
+				_startTagOpen = false;
+			}else{
+				if(shouldIndent()){
+					indent(_depth-1);
+				}
+				startSpan(HtmlRenderer.CLASS_TAG);
+				_writer.write("</");
+				_writer.write(reader.getLocalName());
+				_writer.write('>');
+				endSpan();
+			}
+			--_depth;
+			_preserve = false;
+			for(int i=_namespaces.size()-1;i>=0 && _namespaces.get(i)._depth >= _depth;--i){
+				_namespaces.remove(i);
+			}
+			_prevText = false;
+		}
+
+		/**
+		 * 
+		 * @param name
+		 * @param value
+		 * @throws IOException
+		 */
+		private void attribute(String name, String value) throws IOException {
+			if(isNamespaceDeclaration(name)){
+				for(int i=_namespaces.size()-1;i>=0;--i){
+					Declaration declaration = _namespaces.get(i);
+					if(declaration._name.equals(name)){
+						if(declaration._value.equals(value)){ // redundant declarations are not printed
+							return;
+						}
+						break;
+					}
+				}
+				_namespaces.add(new Declaration(_depth, name, value));
+			}
+			_writer.write(' ');
+			startSpan(HtmlRenderer.CLASS_ATTRIBUTE);
+			_writer.write(name);
+			endSpan();
+			_writer.write('=');
+			startSpan(HtmlRenderer.CLASS_VALUE);
+			_writer.write('"');
+			for(int i=0, length=value.length();i<length;++i){
+				char c = value.charAt(i);
+				switch(c){
+					case '&':
+						_writer.write("&amp;");
+						break;
+					case '<':
+						_writer.write("&lt;");
+						break;
+					case '>':
+						_writer.write("&gt;");
+						break;
+					case '"':
+						_writer.write("&quot;");
+						break;
+					case '\n':
+						_writer.write("&#10;");
+						break;
+					case '\r':
+						_writer.write("&#13;");
+						break;
+					case '\t':
+						_writer.write("&#9;");
+						break;
+					default:
+						character(c);
+						break;
+				}
+			}
+			_writer.write('"');
+			endSpan();
+		}
+
+		/**
+		 * The adjacent text and CDATA sections form a single run, which is a single text node for XPath. A run consisting of whitespace only is kept until the run ends, see {@link #endText()}.
+		 * 
+		 * @param chars
+		 * @param start
+		 * @param length
+		 * @throws IOException
+		 */
+		private void text(char[] chars, int start, int length) throws IOException {
+			int end = start+length;
+			if(!_inText){
+				int i = start;
+				while(i < end && isWhiteSpace(chars[i])){
+					++i;
+				}
+				if(i == end){ // whitespace only, so far
+					int last = _pending.size()-1;
+					if(last < 0 || _pendingCdata.get(last)){ // the consecutive text events are a single node
+						_pending.add(new StringBuilder(length));
+						++last;
+					}
+					_pending.get(last).append(chars, start, length);
+					_pendingText = true;
+					return;
+				}
+				startRun();
+			}
+			startText();
+			for(int i=start;i<end;++i){
+				textCharacter(chars[i]);
+			}
+		}
+
+		/**
+		 * 
+		 * @param text the content of the CDATA section
+		 * @throws IOException
+		 */
+		private void cdata(String text) throws IOException {
+			if(!_inText){
+				if(StringUtils.containsOnly(text, " \t\r\n")){ // whitespace only, so far
+					_pending.add(new StringBuilder(text));
+					_pendingCdata.set(_pending.size()-1);
+					return;
+				}
+				startRun();
+			}
+			printCdata(text);
+		}
+
+		/**
+		 * Starts printing the run directly, after the first non-whitespace content. The pending content is printed as a whole.
+		 * 
+		 * @throws IOException
+		 */
+		private void startRun() throws IOException {
+			printPending(0);
+			_inText = true;
+			_preserve = true;
+		}
+
+		/**
+		 * Ends the current run of text and CDATA sections. If the run consists of whitespace only, its first node is dropped in the same way as XPath removes the whitespace-only text nodes from DOM: only the first node of the run is removed, and a run without text is not removed at all.
+		 * 
+		 * @throws IOException
+		 */
+		private void endText() throws IOException {
+			if(!_inText && !_pending.isEmpty()){
+				printPending(_pendingText ? 1 : 0);
+			}
+			endTextSpan();
+			_inText = false;
+			_pendingText = false;
+		}
+
+		/**
+		 * 
+		 * @param first the index of the first pending node to print
+		 * @throws IOException
+		 */
+		private void printPending(int first) throws IOException {
+			for(int i=first, count=_pending.size();i<count;++i){
+				StringBuilder content = _pending.get(i);
+				if(_pendingCdata.get(i)){
+					printCdata(content.toString());
+				}else{
+					startText();
+					for(int j=0, length=content.length();j<length;++j){
+						textCharacter(content.charAt(j));
+					}
+				}
+			}
+			_pending.clear();
+			_pendingCdata.clear();
+		}
+
+		/**
+		 * Starts or continues printing text
+		 * 
+		 * @throws IOException
+		 */
+		private void startText() throws IOException {
+			if(!_textOpen){
+				closeStartTag();
+				startSpan(HtmlRenderer.CLASS_TEXT);
+				_textOpen = true;
+			}
+			_prevText = true;
+		}
+
+		/**
+		 * 
+		 */
+		private void endTextSpan() {
+			if(_textOpen){
+				endSpan();
+				_textOpen = false;
+			}
+		}
+
+		/**
+		 * 
+		 * @param c
+		 * @throws IOException
+		 */
+		private void textCharacter(char c) throws IOException {
+			switch(c){
+				case '&':
+					_writer.write("&amp;");
+					break;
+				case '<':
+					_writer.write("&lt;");
+					break;
+				case '>':
+					_writer.write("&gt;");
+					break;
+				case '\r':
+					_writer.write("&#13;");
+					break;
+				case '\n':
+					_writer.write(_lineSeparator);
+					break;
+				default:
+					character(c);
+					break;
+			}
+		}
+
+		/**
+		 * 
+		 * @param c
+		 * @throws IOException
+		 */
+		private void character(char c) throws IOException {
+			if(_highSurrogate != 0){
+				char high = _highSurrogate;
+				_highSurrogate = 0;
+				if(Character.isLowSurrogate(c)){ // characters outside the basic plane are printed as character references
+					_writer.write("&#");
+					_writer.write(Integer.toString(Character.toCodePoint(high, c)));
+					_writer.write(';');
+					return;
+				}
+				_writer.write(high);
+			}
+			if(Character.isHighSurrogate(c)){
+				_highSurrogate = c;
+			}else if(_encoder != null && c > 0x7F && !Character.isSurrogate(c) && !_encoder.canEncode(c)){
+				_writer.write("&#");
+				_writer.write(Integer.toString(c));
+				_writer.write(';');
+			}else{
+				_writer.write(c);
+			}
+		}
+
+		/**
+		 * 
+		 * @param text
+		 * @throws IOException
+		 */
+		private void printCdata(String text) throws IOException {
+			endTextSpan();
+			if(text.isEmpty()){ // the serializer prints nothing for an empty section
+				return;
+			}
+			closeStartTag();
+			_preserve = true;
+			startSpan(HtmlRenderer.CLASS_TEXT);
+			_writer.write("<![CDATA[");
+			_writer.write(StringUtils.replace(text, "]]>", "]]]]><![CDATA[>"));
+			_writer.write("]]>");
+			endSpan();
+		}
+
+		/**
+		 * Prints comments and processing instructions, the markup does not end the preceding text in terms of indentation
+		 * 
+		 * @param start
+		 * @param content
+		 * @param end
+		 * @throws IOException
+		 */
+		private void markup(String start, String content, String end) throws IOException {
+			closeStartTag();
+			if(shouldIndent()){
+				indent(_depth);
+			}
+			startSpan(HtmlRenderer.CLASS_COMMENT);
+			_writer.write(start);
+			_writer.write(content);
+			_writer.write(end);
+			endSpan();
+		}
+
+		/**
+		 * 
+		 * @throws IOException
+		 */
+		private void closeStartTag() throws IOException {
+			if(_startTagOpen){
+				startSpan(HtmlRenderer.CLASS_TAG);
+				_writer.write('>');
+				endSpan();
+				_startTagOpen = false;
+			}
+		}
+
+		/**
+		 * 
+		 * @param cssClass
+		 */
+		private void startSpan(String cssClass) {
+			if(_html != null){
+				_html.startSpan(cssClass);
+			}
+		}
+
+		/**
+		 * 
+		 */
+		private void endSpan() {
+			if(_html != null){
+				_html.endSpan();
+			}
+		}
+
+		/**
+		 * 
+		 * @return true if a line break and indentation should be printed before the next markup
+		 */
+		private boolean shouldIndent() {
+			return (_depth > 0 && !_prevText && !_preserve);
+		}
+
+		/**
+		 * 
+		 * @param depth
+		 * @throws IOException
+		 */
+		private void indent(int depth) throws IOException {
+			_writer.write(_lineSeparator);
+			for(int i=depth*INDENT_AMOUNT;i>0;--i){
+				_writer.write(' ');
+			}
+		}
+	} // class Printer
+
+	/**
+	 * Namespace declaration printed on the given depth
+	 * 
+	 */
+	private static class Declaration {
+		private int _depth = 0;
+		private String _name = null;
+		private String _value = null;
+
+		/**
+		 * 
+		 * @param depth
+		 * @param name
+		 * @param value
+		 */
+		public Declaration(int depth, String name, String value) {
+			_depth = depth;
+			_name = name;
+			_value = value;
+		}
+	} // class Declaration
+}